@@ -8,19 +8,57 @@ You may represent the classes and interfaces in separate Java files:
 commands
 |_ Command.java
 |_ LightOnOffCommand.java
+|_ MacroCommand.java
 
 receiver
 |_ Light.java
 
 invoker
+|_ BatchExecutor.java
+|_ CommandQueue.java
+|_ RemoteControl.java
 |_SimpleRemoteControl.java
+|_ Submission.java
 
 Main.java
 **/
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
 // Command declares and interface for all commands
 interface Command {
   public void execute();
+
+  // The object the command acts on, or null if it isn't tied to a single
+  // one. Commands for different receivers may run in parallel; receivers
+  // that are equals() count as the same one.
+  default Object receiver() {
+    return null;
+  }
+
+  // Whether running this command right after the other one leaves the
+  // receiver as if neither had run, so both can be skipped.
+  default boolean cancels(Command other) {
+    return false;
+  }
 }
   
 // ConcreteCommand defintes binding between action (on() and off()) and a Receiver (Light)
@@ -37,15 +75,62 @@ class LightOnOffCommand implements Command {
     }
     this.light.on();
   }
+
+  @Override
+  public Object receiver() {
+    return light;
+  }
+
+  // Toggling the same light twice changes nothing.
+  @Override
+  public boolean cancels(Command other) {
+    return other instanceof LightOnOffCommand && ((LightOnOffCommand) other).light == light;
+  }
+}
+
+// A command made of other commands, which can be macro commands too.
+// execute() runs them one after another; a RemoteControl runs them as one
+// batch (see BatchExecutor).
+class MacroCommand implements Command {
+  private final List<Command> commands;
+
+  public MacroCommand(List<Command> commands) {
+    this.commands = new ArrayList<>(commands);
+  }
+
+  public void execute() {
+    for (Command command : commands) {
+      command.execute();
+    }
+  }
+
+  // Adds the commands to the list, with nested macro commands replaced by
+  // their commands.
+  void flattenInto(List<Command> into) {
+    for (Command command : commands) {
+      if (command instanceof MacroCommand) {
+        ((MacroCommand) command).flattenInto(into);
+      } else {
+        into.add(command);
+      }
+    }
+  }
 }
   
 // Receiver (Light) knows how to perform the work needed to carryout the request. 
 // Any class can act as a Receiver 
 class Light {
   private boolean isOn = false;
+  private final boolean announce;
 
   public Light() {
+    this(true);
+  }
+
+  // A light that doesn't print anything, for when there are thousands.
+  public Light(boolean announce) {
     this.isOn = false;
+    this.announce = announce;
   }
 
   boolean getLightState() { return this.isOn; }
@@ -53,11 +138,15 @@ class Light {
 
   void on() {
     this.setLightState();
-    System.out.println("Light is on! It's so BRIGHT!");
+    if (announce) {
+      System.out.println("Light is on! It's so BRIGHT!");
+    }
   }
   void off() {
     this.setLightState();
-    System.out.println("Light is off! It's so DARK!");
+    if (announce) {
+      System.out.println("Light is off! It's so DARK!");
+    }
   }
 }
   
@@ -77,6 +166,320 @@ class SimpleRemoteControl {
   }
 }
   
+// Runs a batch of commands as fast as it can while keeping the outcome the
+// same as running them one after another:
+// 1. Commands are grouped by receiver, keeping their order within a group.
+//    A command without a receiver may touch anything, so it is a barrier:
+//    everything before it runs first, then it runs on its own, then the
+//    rest of the batch.
+// 2. Within a group, a command that cancels the one before it is dropped
+//    together with that one, so toggling a light twice does nothing.
+// 3. The groups touch different receivers, so they run in parallel on a
+//    work-stealing pool, each group's commands in order on one thread.
+class BatchExecutor {
+  // Groups per task; smaller batches aren't worth splitting.
+  private static final int GROUPS_PER_TASK = 64;
+  private final ForkJoinPool pool;
+
+  public BatchExecutor(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  // Returns how many commands were actually executed.
+  public int execute(List<Command> commands) {
+    int executed = 0;
+    Map<Object, List<Command>> byReceiver = new HashMap<>();
+    for (Command command : commands) {
+      Object receiver = command.receiver();
+      if (receiver == null) {
+        executed += executeGroups(byReceiver);
+        byReceiver.clear();
+        command.execute();
+        executed++;
+      } else {
+        byReceiver.computeIfAbsent(receiver, r -> new ArrayList<>()).add(command);
+      }
+    }
+    return executed + executeGroups(byReceiver);
+  }
+
+  private int executeGroups(Map<Object, List<Command>> byReceiver) {
+    List<List<Command>> groups = new ArrayList<>(byReceiver.values());
+    int executed = 0;
+    for (int i = 0; i < groups.size(); i++) {
+      List<Command> group = withoutRedundant(groups.get(i));
+      groups.set(i, group);
+      executed += group.size();
+    }
+    if (groups.size() <= GROUPS_PER_TASK) {
+      for (List<Command> group : groups) {
+        run(group);
+      }
+    } else {
+      pool.invoke(new GroupTask(groups, 0, groups.size()));
+    }
+    return executed;
+  }
+
+  static List<Command> withoutRedundant(List<Command> group) {
+    List<Command> kept = new ArrayList<>(group.size());
+    for (Command command : group) {
+      if (!kept.isEmpty() && command.cancels(kept.get(kept.size() - 1))) {
+        kept.remove(kept.size() - 1);
+      } else {
+        kept.add(command);
+      }
+    }
+    return kept;
+  }
+
+  private static void run(List<Command> group) {
+    for (Command command : group) {
+      command.execute();
+    }
+  }
+
+  private static class GroupTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final List<List<Command>> groups;
+    private final int from;
+    private final int to;
+
+    GroupTask(List<List<Command>> groups, int from, int to) {
+      this.groups = groups;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= GROUPS_PER_TASK) {
+        for (int i = from; i < to; i++) {
+          run(groups.get(i));
+        }
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      invokeAll(new GroupTask(groups, from, middle), new GroupTask(groups, middle, to));
+    }
+  }
+}
+
+// Invoker (RemoteControl) is a SimpleRemoteControl with many slots. A
+// macro command in a slot is run as one batch by the BatchExecutor.
+class RemoteControl {
+  private final Command[] slots;
+  private final BatchExecutor executor;
+
+  public RemoteControl(int slotCount, BatchExecutor executor) {
+    this.slots = new Command[slotCount];
+    this.executor = executor;
+  }
+
+  public void setCommand(int slot, Command command) {
+    slots[slot] = command;
+  }
+
+  // Returns how many commands were actually executed.
+  public int buttonWasPressed(int slot) {
+    Command command = slots[slot];
+    if (command instanceof MacroCommand) {
+      List<Command> commands = new ArrayList<>();
+      ((MacroCommand) command).flattenInto(commands);
+      return executor.execute(commands);
+    }
+    command.execute();
+    return 1;
+  }
+}
+
+// A command waiting in a CommandQueue, which is also the future its
+// caller gets back.
+final class Submission extends CompletableFuture<Void> {
+  final Command command;
+
+  Submission(Command command) {
+    this.command = command;
+  }
+
+  // Whatever the command throws, Errors included, ends up in the future,
+  // so nobody waits for it forever.
+  void run() {
+    try {
+      command.execute();
+      complete(null);
+    } catch (Throwable e) {
+      completeExceptionally(e);
+    }
+  }
+}
+
+// Invoker (CommandQueue) takes commands from any thread, e.g. a UI thread,
+// and runs them in the background. Each submit() returns a future that
+// completes once the command has run.
+//
+// submit() never waits for a receiver, however slow: it claims a slot in
+// a bounded ring with one CAS and publishes the command there, and if the
+// ring is full the command is rejected right away. A single dispatcher
+// thread takes the commands off the ring in the order they were claimed
+// and hands them to the executor. Commands for the same receiver run one
+// at a time, in that order, while different receivers run concurrently.
+final class CommandQueue implements AutoCloseable {
+  // Once the queue is closed and drained, next is set to this so that no
+  // more slots can be claimed.
+  private static final long CLOSED = Long.MIN_VALUE;
+  private final Submission[] slots;
+  private final AtomicLongArray published;
+  private final int mask;
+  private final AtomicLong next = new AtomicLong();     // next sequence to claim
+  private final AtomicLong consumed = new AtomicLong(); // next sequence to dispatch
+  private final Executor executor;
+  private final Thread dispatcher;
+  private volatile boolean sleeping;
+  private volatile boolean closed;
+  // Only the dispatcher thread touches this. Weak keys, so receivers with
+  // nothing queued can go away; like BatchExecutor, it tells receivers
+  // apart with equals().
+  private final Map<Object, ReceiverQueue> receivers = new WeakHashMap<>();
+
+  // The executor runs the commands; it needs as many threads as receivers
+  // you want to run at the same time (on Java 21+,
+  // Executors.newVirtualThreadPerTaskExecutor() is a good fit).
+  public CommandQueue(int capacity, Executor executor) {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    this.slots = new Submission[size];
+    this.published = new AtomicLongArray(size);
+    this.mask = size - 1;
+    for (int i = 0; i < size; i++) {
+      published.set(i, -1);
+    }
+    this.executor = executor;
+    this.dispatcher = new Thread(this::dispatch, "command-dispatcher");
+    this.dispatcher.setDaemon(true);
+    this.dispatcher.start();
+  }
+
+  // The future fails with a RejectedExecutionException if the queue is
+  // full or closed, and with the command's exception if it throws.
+  public CompletableFuture<Void> submit(Command command) {
+    Submission submission = new Submission(command);
+    long seq;
+    do {
+      seq = next.get();
+      if (seq == CLOSED || closed) {
+        submission.completeExceptionally(new RejectedExecutionException("command queue is closed"));
+        return submission;
+      }
+      if (seq - consumed.get() >= slots.length) {
+        submission.completeExceptionally(new RejectedExecutionException("command queue is full"));
+        return submission;
+      }
+    } while (!next.compareAndSet(seq, seq + 1));
+    slots[(int) seq & mask] = submission;
+    // A volatile write, so that either the dispatcher sees it before going
+    // to sleep or we see that it went to sleep.
+    published.set((int) seq & mask, seq);
+    if (sleeping) {
+      LockSupport.unpark(dispatcher);
+    }
+    return submission;
+  }
+
+  // Stops taking commands and returns once everything already submitted
+  // has been handed to the executor. If interrupted, it returns early
+  // with the interrupt flag set.
+  @Override
+  public void close() {
+    closed = true;
+    LockSupport.unpark(dispatcher);
+    try {
+      dispatcher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void dispatch() {
+    long seq = 0;
+    while (true) {
+      int index = (int) seq & mask;
+      if (published.get(index) == seq) {
+        Submission submission = slots[index];
+        slots[index] = null;
+        consumed.lazySet(++seq);
+        route(submission);
+        continue;
+      }
+      if (closed && next.compareAndSet(seq, CLOSED)) {
+        return;
+      }
+      sleeping = true;
+      if (published.get(index) != seq && !closed) {
+        LockSupport.parkNanos(1_000_000);
+      }
+      sleeping = false;
+    }
+  }
+
+  private void route(Submission submission) {
+    try {
+      Object receiver = submission.command.receiver();
+      if (receiver == null) {
+        executor.execute(submission::run);
+      } else {
+        receivers.computeIfAbsent(receiver, r -> new ReceiverQueue()).add(submission);
+      }
+    } catch (RejectedExecutionException e) {
+      submission.completeExceptionally(e);
+    }
+  }
+
+  // Runs one receiver's commands one after another on the executor. At
+  // most one drain task per receiver is scheduled at any time.
+  private class ReceiverQueue {
+    private final Queue<Submission> submissions = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    void add(Submission submission) {
+      submissions.add(submission);
+      if (scheduled.compareAndSet(false, true)) {
+        schedule();
+      }
+    }
+
+    private void schedule() {
+      try {
+        executor.execute(this::drain);
+      } catch (RejectedExecutionException e) {
+        // Nothing is going to run what is queued: fail it, and let the
+        // next command try again.
+        Submission queued;
+        while ((queued = submissions.poll()) != null) {
+          queued.completeExceptionally(e);
+        }
+        scheduled.set(false);
+        if (!submissions.isEmpty() && scheduled.compareAndSet(false, true)) {
+          schedule();
+        }
+      }
+    }
+
+    private void drain() {
+      Submission submission;
+      while ((submission = submissions.poll()) != null) {
+        submission.run();
+      }
+      scheduled.set(false);
+      // A command added after our last poll() but before set(false) found
+      // the queue still scheduled; pick it up ourselves.
+      if (!submissions.isEmpty() && scheduled.compareAndSet(false, true)) {
+        schedule();
+      }
+    }
+  }
+}
+
 // Client (Main) is reponsible for creating 
 // a ConcreteCommand (LightOnOffCommand)
 // and setting its receiver  
@@ -89,6 +492,147 @@ class Main {
     remote.buttonWasPressed();
     remote.buttonWasPressed();
     remote.buttonWasPressed();
+
+    // A controller for 10,000 lights that take 5 microseconds to switch.
+    // Slot 0 toggles all of them; slot 1 toggles every light three times,
+    // which is the same as once.
+    int lightCount = 10_000;
+    List<Command> toggleAll = new ArrayList<>();
+    List<Command> toggleThrice = new ArrayList<>();
+    List<Light> lights = new ArrayList<>();
+    for (int i = 0; i < lightCount; i++) {
+      Light quiet = new Light(false) {
+        @Override
+        void setLightState() {
+          long until = System.nanoTime() + 5_000;
+          while (System.nanoTime() < until) {
+            // talking to the light
+          }
+          super.setLightState();
+        }
+      };
+      lights.add(quiet);
+      toggleAll.add(new LightOnOffCommand(quiet));
+    }
+    for (int round = 0; round < 3; round++) {
+      toggleThrice.add(new MacroCommand(toggleAll));
+    }
+    RemoteControl control = new RemoteControl(2, new BatchExecutor(ForkJoinPool.commonPool()));
+    control.setCommand(0, new MacroCommand(toggleAll));
+    control.setCommand(1, new MacroCommand(toggleThrice));
+
+    System.out.println();
+    System.out.println("slot 0 ran " + control.buttonWasPressed(0) + " commands");
+    System.out.println("slot 1 ran " + control.buttonWasPressed(1) + " commands for " + toggleThrice.size() * lightCount);
+    int off = 0;
+    for (Light quiet : lights) {
+      off += quiet.getLightState() ? 0 : 1;
+    }
+    System.out.println(off + " lights are off again");
+
+    // A command without a receiver runs on its own, after everything
+    // before it, so the two toggles around it can't cancel out.
+    Light watched = new Light(false);
+    boolean[] sawOn = new boolean[1];
+    List<Command> checked = List.of(new LightOnOffCommand(watched), () -> sawOn[0] = watched.getLightState(),
+      new LightOnOffCommand(watched));
+    int ran = new BatchExecutor(ForkJoinPool.commonPool()).execute(checked);
+    System.out.println(ran + " commands ran, the check in between saw the light on: " + sawOn[0]);
+
+    int presses = 5;
+    long began = System.nanoTime();
+    for (int i = 0; i < presses; i++) {
+      new MacroCommand(toggleThrice).execute();
+    }
+    long oneByOne = (System.nanoTime() - began) / presses;
+    began = System.nanoTime();
+    for (int i = 0; i < presses; i++) {
+      control.buttonWasPressed(1);
+    }
+    long batched = (System.nanoTime() - began) / presses;
+    System.out.println("slot 1 one by one: " + oneByOne / 1_000_000 + " ms, batched on "
+      + ForkJoinPool.commonPool().getParallelism() + " thread(s): " + batched / 1_000_000 + " ms");
+
+    System.out.println();
+    try {
+      commandQueue();
+    } catch (InterruptedException ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  // A "UI thread" submits 200,000 commands for 100 lights that take at
+  // least 20 microseconds each to answer, far more than the executor can
+  // keep up with.
+  static void commandQueue() throws InterruptedException {
+    int lightCount = 100;
+    int submits = 200_000;
+    Light[] lights = new Light[lightCount];
+    long[] lastSeen = new long[lightCount];
+    int[] outOfOrder = new int[1];
+    for (int i = 0; i < lightCount; i++) {
+      lights[i] = new Light(false);
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    CommandQueue queue = new CommandQueue(1 << 14, pool);
+    List<CompletableFuture<Void>> accepted = new ArrayList<>();
+    long[] sampled = new long[submits / 100];
+    int rejected = 0;
+    long began = System.nanoTime();
+    for (int i = 0; i < submits; i++) {
+      int light = i % lightCount;
+      long order = i;
+      Command command = new Command() {
+        public void execute() {
+          // waiting for the light to answer
+          LockSupport.parkNanos(20_000);
+          if (order < lastSeen[light]) {
+            outOfOrder[0]++;
+          }
+          lastSeen[light] = order;
+        }
+
+        public Object receiver() {
+          return lights[light];
+        }
+      };
+      CompletableFuture<Void> future;
+      if (i % 100 == 0) {
+        long submitted = System.nanoTime();
+        future = queue.submit(command);
+        sampled[i / 100] = System.nanoTime() - submitted;
+      } else {
+        future = queue.submit(command);
+      }
+      if (future.isCompletedExceptionally()) {
+        rejected++;
+      } else {
+        accepted.add(future);
+      }
+    }
+    long submitNanos = (System.nanoTime() - began) / submits;
+    CompletableFuture.allOf(accepted.toArray(new CompletableFuture<?>[0])).join();
+    long allDone = (System.nanoTime() - began) / 1_000_000;
+    queue.close();
+    pool.shutdown();
+
+    Arrays.sort(sampled);
+    System.out.println(submits + " submits: " + submitNanos + " ns each on average, p50 "
+      + sampled[sampled.length / 2] + " ns, p99 " + sampled[sampled.length * 99 / 100] + " ns");
+    System.out.println(accepted.size() + " ran in " + allDone + " ms, " + rejected + " rejected while the queue was full, "
+      + outOfOrder[0] + " out of order");
+
+    // An executor that refuses the work fails the commands instead of
+    // leaving their futures waiting forever.
+    ExecutorService stopped = Executors.newSingleThreadExecutor();
+    stopped.shutdown();
+    CommandQueue refused = new CommandQueue(16, stopped);
+    Light light = new Light(false);
+    CompletableFuture<Void> first = refused.submit(new LightOnOffCommand(light));
+    CompletableFuture<Void> second = refused.submit(new LightOnOffCommand(light));
+    System.out.println("on a stopped executor, both commands failed: "
+      + (first.handle((ignored, e) -> e != null).join() && second.handle((ignored, e) -> e != null).join()));
+    refused.close();
   }
 }
   
\ No newline at end of file
@@ -9,128 +9,1803 @@ commands
 |_ CopyCommand.java
 |_ PasteCommand.java
 |_ CutCommand.java
+|_ TypeCommand.java
 |_ CommandHistory.java
+|_ SpilledHistory.java
+|_ Edit.java
+
+replay
+|_ CommandLog.java
+|_ LatencyHistogram.java
+|_ ReplayEngine.java
 
 editor
 |_ Editor.java
+|_ EditorWindow.java
+|_ Rope.java
+|_ TextDocument.java
+
+collaboration
+|_ CollabClient.java
+|_ CollabServer.java
+|_ Message.java
+|_ Operation.java
+
+Main.java
+
+Source: https://refactoring.guru/design-patterns/command/java/example
+**/
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import javax.swing.*;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DocumentFilter;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+// A reversible change to the text: at offset, removed was replaced by
+// inserted. Undoing it is the same change the other way round, so it is
+// all a command needs to keep for undo and redo, however big the document.
+final class Edit {
+  final int offset;
+  final String removed;
+  final String inserted;
+
+  Edit(int offset, String removed, String inserted) {
+    this.offset = offset;
+    this.removed = removed;
+    this.inserted = inserted;
+  }
+
+  Edit inverse() {
+    return new Edit(offset, inserted, removed);
+  }
+
+  // Roughly what the edit keeps on the heap: the object and two strings.
+  long bytes() {
+    return 64 + 2L * (removed.length() + inserted.length());
+  }
+}
+
+// An immutable text, kept as a balanced tree of pieces of strings.
+//
+// A leaf is a piece of some string, which it shares rather than copies, so
+// loading a document copies nothing and splitting a leaf only makes two
+// smaller pieces of the same string. Inserting or deleting splits the tree
+// at the offsets and joins the parts back together, which takes O(log n)
+// and builds only O(log n) new nodes; everything else is shared with the
+// text it was made from. That makes every version of a document about as
+// cheap to keep as a reference to it. The tree is kept balanced like an
+// AVL tree: the heights of the two halves of any node differ by at most
+// one.
+final class Rope {
+  private static final int MAX_LEAF = 2048;
+  // Neighbouring pieces this short are copied into one, so that typing a
+  // character at a time doesn't leave a leaf per character.
+  private static final int MAX_COPY = 64;
+  static final Rope EMPTY = new Rope("", 0, 0);
+
+  // Either a leaf, base[start, start + length), or a node with two halves.
+  private final String base;
+  private final int start;
+  private final Rope left;
+  private final Rope right;
+  private final int length;
+  private final int height;
+
+  private Rope(String base, int start, int length) {
+    this.base = base;
+    this.start = start;
+    this.left = null;
+    this.right = null;
+    this.length = length;
+    this.height = 0;
+  }
+
+  private Rope(Rope left, Rope right) {
+    this.base = null;
+    this.start = 0;
+    this.left = left;
+    this.right = right;
+    this.length = left.length + right.length;
+    this.height = 1 + Math.max(left.height, right.height);
+  }
+
+  static Rope of(String text) {
+    return text.isEmpty() ? EMPTY : build(text, 0, text.length());
+  }
+
+  private static Rope build(String text, int start, int end) {
+    if (end - start <= MAX_LEAF) {
+      return new Rope(text, start, end - start);
+    }
+    int middle = (start + end) >>> 1;
+    return new Rope(build(text, start, middle), build(text, middle, end));
+  }
+
+  public int length() {
+    return length;
+  }
+
+  public char charAt(int index) {
+    Rope node = this;
+    while (node.base == null) {
+      if (index < node.left.length) {
+        node = node.left;
+      } else {
+        index -= node.left.length;
+        node = node.right;
+      }
+    }
+    return node.base.charAt(node.start + index);
+  }
+
+  public Rope insert(int offset, String inserted) {
+    checkRange(offset, offset);
+    if (inserted.isEmpty()) {
+      return this;
+    }
+    Rope[] halves = split(offset);
+    return join(join(halves[0], of(inserted)), halves[1]);
+  }
+
+  public Rope delete(int start, int end) {
+    checkRange(start, end);
+    if (start == end) {
+      return this;
+    }
+    Rope[] before = split(start);
+    Rope[] after = before[1].split(end - start);
+    return join(before[0], after[1]);
+  }
+
+  public String substring(int start, int end) {
+    checkRange(start, end);
+    StringBuilder out = new StringBuilder(end - start);
+    appendTo(out, start, end);
+    return out.toString();
+  }
+
+  @Override
+  public String toString() {
+    return substring(0, length);
+  }
+
+  private void appendTo(StringBuilder out, int from, int to) {
+    if (base != null) {
+      out.append(base, start + from, start + to);
+      return;
+    }
+    if (from < left.length) {
+      left.appendTo(out, from, Math.min(to, left.length));
+    }
+    if (to > left.length) {
+      right.appendTo(out, Math.max(0, from - left.length), to - left.length);
+    }
+  }
+
+  private Rope[] split(int offset) {
+    if (offset == 0) {
+      return new Rope[] {EMPTY, this};
+    }
+    if (offset == length) {
+      return new Rope[] {this, EMPTY};
+    }
+    if (base != null) {
+      return new Rope[] {new Rope(base, start, offset), new Rope(base, start + offset, length - offset)};
+    }
+    if (offset <= left.length) {
+      Rope[] halves = left.split(offset);
+      return new Rope[] {halves[0], join(halves[1], right)};
+    }
+    Rope[] halves = right.split(offset - left.length);
+    return new Rope[] {join(left, halves[0]), halves[1]};
+  }
+
+  // Concatenates two balanced trees into a balanced tree, in time
+  // proportional to the difference of their heights.
+  private static Rope join(Rope left, Rope right) {
+    if (left.length == 0) {
+      return right;
+    }
+    if (right.length == 0) {
+      return left;
+    }
+    if (left.base != null && right.base != null) {
+      if (left.base == right.base && left.start + left.length == right.start && left.length + right.length <= MAX_LEAF) {
+        return new Rope(left.base, left.start, left.length + right.length);
+      }
+      if (left.length + right.length <= MAX_COPY) {
+        return new Rope(left.toString() + right, 0, left.length + right.length);
+      }
+    }
+    if (left.height > right.height + 1) {
+      return balance(left.left, join(left.right, right));
+    }
+    if (right.height > left.height + 1) {
+      return balance(join(left, right.left), right.right);
+    }
+    return new Rope(left, right);
+  }
+
+  // A node from two halves whose heights differ by at most two, rotated
+  // so they differ by at most one.
+  private static Rope balance(Rope left, Rope right) {
+    if (left.height > right.height + 1) {
+      if (left.left.height >= left.right.height) {
+        return new Rope(left.left, new Rope(left.right, right));
+      }
+      return new Rope(new Rope(left.left, left.right.left), new Rope(left.right.right, right));
+    }
+    if (right.height > left.height + 1) {
+      if (right.right.height >= right.left.height) {
+        return new Rope(new Rope(left, right.left), right.right);
+      }
+      return new Rope(new Rope(left, right.left.left), new Rope(right.left.right, right.right));
+    }
+    return new Rope(left, right);
+  }
+
+  private void checkRange(int from, int to) {
+    if (from < 0 || to < from || to > length) {
+      throw new IndexOutOfBoundsException("[" + from + ", " + to + ") of " + length);
+    }
+  }
+}
+
+// The text being edited, without any user interface. Every change is an
+// Edit, which listeners (e.g. an EditorWindow) get to see after it has
+// been made. text() is a snapshot that later edits leave alone.
+class TextDocument {
+  private Rope text;
+  private final List<Consumer<Edit>> listeners = new ArrayList<>();
+
+  TextDocument(String text) {
+    this.text = Rope.of(text);
+  }
+
+  public Rope text() {
+    return text;
+  }
+
+  public int length() {
+    return text.length();
+  }
+
+  public void addListener(Consumer<Edit> listener) {
+    listeners.add(listener);
+  }
+
+  public void apply(Edit edit) {
+    text = text.delete(edit.offset, edit.offset + edit.removed.length()).insert(edit.offset, edit.inserted);
+    for (Consumer<Edit> listener : listeners) {
+      listener.accept(edit);
+    }
+  }
+}
+
+// Command declares and interface for all commands
+abstract class Command {
+  public Editor editor;
+  private Edit edit;
+
+  Command(Editor editor) {
+    this.editor = editor;
+  }
+
+  // Makes the change and remembers it for undo() and redo().
+  void change(int offset, String removed, String inserted) {
+    edit = new Edit(offset, removed, inserted);
+    editor.apply(edit);
+  }
+
+  public void undo() {
+    editor.apply(edit.inverse());
+  }
+
+  public void redo() {
+    editor.apply(edit);
+  }
+
+  // What the command keeps on the heap for undo.
+  long bytes() {
+    return edit == null ? 16 : 16 + edit.bytes();
+  }
+
+  // The change the command made, or null if it made none. Undoing the
+  // command is applying its inverse.
+  public Edit edit() {
+    return edit;
+  }
+
+  public abstract boolean execute();
+
+  // Records the command in a CommandLog, enough to run it again.
+  abstract void writeTo(CommandLog log);
+}
+
+// CopyCommand (a ConcreteCommand) defintes binding between 
+// action/s (getSelectedText()) and a Receiver (Editor)
+class CopyCommand extends Command {
+
+  public CopyCommand(Editor editor) {
+    super(editor);
+  }
+
+  @Override
+  public boolean execute() {
+    editor.clipboard = editor.selectedText();
+    return false;
+  }
+
+  @Override
+  void writeTo(CommandLog log) {
+    log.op(CommandLog.COPY);
+  }
+}
+
+// PasteCommand (a ConcreteCommand) defintes binding between 
+// action/s (caret() and a change()) and a Receiver (Editor)
+class PasteCommand extends Command {
+
+  public PasteCommand(Editor editor) {
+    super(editor);
+  }
+
+  @Override
+  public boolean execute() {
+    if (editor.clipboard == null || editor.clipboard.isEmpty()) return false;
+
+    change(editor.caret(), "", editor.clipboard);
+    return true;
+  }
+
+  @Override
+  void writeTo(CommandLog log) {
+    log.op(CommandLog.PASTE);
+  }
+}
+
+// CutCommand (a ConcreteCommand) defintes binding between 
+// action/s (selectedText() and a change()) and a Receiver (Editor)
+class CutCommand extends Command {
+
+  public CutCommand(Editor editor) {
+      super(editor);
+  }
+
+  @Override
+  public boolean execute() {
+    String selected = editor.selectedText();
+    if (selected.isEmpty()) return false;
+
+    editor.clipboard = selected;
+    change(editor.selectionStart(), selected, "");
+    return true;
+  }
+
+  @Override
+  void writeTo(CommandLog log) {
+    log.op(CommandLog.CUT);
+  }
+}
+
+// TypeCommand (a ConcreteCommand) is whatever the user typed straight
+// into the text, so that it can be undone like any other change.
+class TypeCommand extends Command {
+  private final int offset;
+  private final String removed;
+  private final String inserted;
+
+  public TypeCommand(Editor editor, int offset, String removed, String inserted) {
+    super(editor);
+    this.offset = offset;
+    this.removed = removed;
+    this.inserted = inserted;
+  }
+
+  @Override
+  public boolean execute() {
+    change(offset, removed, inserted);
+    return true;
+  }
+
+  @Override
+  void writeTo(CommandLog log) {
+    log.type(offset, removed.length(), inserted);
+  }
+}
+
+// Records everything done in an Editor (see Editor.log) in a compact
+// binary format, so that the session can be run again by a ReplayEngine.
+//
+// The log starts with MAGIC and VERSION, followed by one record per
+// command: an opcode byte and its arguments as unsigned varints. Commands
+// work on the selection, so the selection is written before a command
+// whenever it differs from where the previous command left it:
+//   SELECT start end
+//   COPY | CUT | PASTE | UNDO | REDO
+//   TYPE offset removedLength insertedLength insertedUtf8Bytes
+// Removed text isn't written: replaying the same commands on the same
+// text, it is always what is in the document at that offset. UNDO and
+// REDO are only written when they changed something, so the log doesn't
+// depend on how much history the recording editor kept.
+final class CommandLog implements Closeable {
+  static final int MAGIC = 0x434d444c; // "CMDL"
+  static final byte VERSION = 2;
+  static final byte SELECT = 1;
+  static final byte COPY = 2;
+  static final byte CUT = 3;
+  static final byte PASTE = 4;
+  static final byte TYPE = 5;
+  static final byte UNDO = 6;
+  static final byte REDO = 7;
+  static final String[] NAMES = {null, "select", "copy", "cut", "paste", "type", "undo", "redo"};
+
+  private final OutputStream out;
+  // Where the last command left the selection.
+  private int selectionStart;
+  private int selectionEnd;
+
+  CommandLog(OutputStream out) {
+    this.out = new BufferedOutputStream(out, 64 * 1024);
+    write(MAGIC >>> 24);
+    write(MAGIC >>> 16);
+    write(MAGIC >>> 8);
+    write(MAGIC);
+    write(VERSION);
+  }
+
+  void command(Editor editor, Command command) {
+    selection(editor);
+    command.writeTo(this);
+  }
+
+  void undo() {
+    op(UNDO);
+  }
+
+  void redo() {
+    op(REDO);
+  }
+
+  // Called after every command, undo and redo.
+  void executed(Editor editor) {
+    selectionStart = editor.selectionStart();
+    selectionEnd = editor.caret();
+  }
+
+  void op(byte op) {
+    write(op);
+  }
+
+  void type(int offset, int removedLength, String inserted) {
+    byte[] bytes = inserted.getBytes(StandardCharsets.UTF_8);
+    write(TYPE);
+    varint(offset);
+    varint(removedLength);
+    varint(bytes.length);
+    try {
+      out.write(bytes);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+
+  private void selection(Editor editor) {
+    if (editor.selectionStart() != selectionStart || editor.caret() != selectionEnd) {
+      write(SELECT);
+      varint(editor.selectionStart());
+      varint(editor.caret());
+    }
+  }
+
+  private void varint(int value) {
+    while ((value & ~0x7f) != 0) {
+      write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    write(value);
+  }
+
+  private void write(int b) {
+    try {
+      out.write(b);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
+
+// Counts latencies in buckets that are exact below 16 ns and then 1/16th
+// of a power of two wide, which is fine-grained enough for percentiles
+// and takes a fixed 8 KB whatever is recorded.
+final class LatencyHistogram {
+  private static final int SUB_BUCKETS = 16;
+  private final long[] counts = new long[64 * SUB_BUCKETS];
+  private long total;
+
+  void record(long nanos) {
+    counts[bucket(Math.max(0, nanos))]++;
+    total++;
+  }
+
+  long count() {
+    return total;
+  }
+
+  // The upper end of the bucket holding the given fraction of values.
+  long percentile(double fraction) {
+    long rank = Math.max(1, (long) Math.ceil(total * fraction));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return top(i);
+      }
+    }
+    return 0;
+  }
+
+  private static int bucket(long nanos) {
+    if (nanos < SUB_BUCKETS) {
+      return (int) nanos;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+    int sub = (int) (nanos >>> (exponent - 4)) & (SUB_BUCKETS - 1);
+    return (exponent - 3) * SUB_BUCKETS + sub;
+  }
+
+  private static long top(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + 3;
+    long width = 1L << (exponent - 4);
+    return (SUB_BUCKETS + bucket % SUB_BUCKETS) * width + width - 1;
+  }
+}
+
+// Runs the commands of a CommandLog against an Editor, without any user
+// interface. Started on an editor with the same text as the recorded
+// one, it ends up with the same text, selection and clipboard. An undo or
+// redo the editor can't repeat, e.g. because its history budget dropped
+// the edit, stops the replay rather than letting it go on diverging.
+final class ReplayEngine {
+  private ReplayEngine() {}
+
+  // Maps the log file and replays it.
+  static long replay(Path logFile, Editor editor, LatencyHistogram[] byOp) throws IOException {
+    try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.READ)) {
+      return replay(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), editor, byOp);
+    }
+  }
+
+  // Returns how many records were replayed. If byOp isn't null, the time
+  // each record takes is recorded in byOp[opcode].
+  static long replay(ByteBuffer log, Editor editor, LatencyHistogram[] byOp) {
+    if (log.getInt() != CommandLog.MAGIC) {
+      throw new IllegalArgumentException("Not a command log");
+    }
+    byte version = log.get();
+    if (version != CommandLog.VERSION) {
+      throw new IllegalArgumentException("Unsupported command log version " + version);
+    }
+    long records = 0;
+    while (log.hasRemaining()) {
+      byte op = log.get();
+      long began = byOp == null ? 0 : System.nanoTime();
+      switch (op) {
+        case CommandLog.SELECT:
+          editor.select(varint(log), varint(log));
+          break;
+        case CommandLog.COPY:
+          editor.executeCommand(new CopyCommand(editor));
+          break;
+        case CommandLog.CUT:
+          editor.executeCommand(new CutCommand(editor));
+          break;
+        case CommandLog.PASTE:
+          editor.executeCommand(new PasteCommand(editor));
+          break;
+        case CommandLog.TYPE: {
+          int offset = varint(log);
+          int removedLength = varint(log);
+          byte[] bytes = new byte[varint(log)];
+          log.get(bytes);
+          String removed = editor.document.text().substring(offset, offset + removedLength);
+          editor.executeCommand(new TypeCommand(editor, offset, removed, new String(bytes, StandardCharsets.UTF_8)));
+          break;
+        }
+        case CommandLog.UNDO:
+          if (!editor.undo()) {
+            throw new IllegalStateException("Nothing to undo at record " + records + ", the replay diverged");
+          }
+          break;
+        case CommandLog.REDO:
+          if (!editor.redo()) {
+            throw new IllegalStateException("Nothing to redo at record " + records + ", the replay diverged");
+          }
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown opcode " + op + " at " + (log.position() - 1));
+      }
+      if (byOp != null) {
+        byOp[op].record(System.nanoTime() - began);
+      }
+      records++;
+    }
+    return records;
+  }
+
+  private static int varint(ByteBuffer log) {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = log.get();
+      value |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+  }
+}
+
+// CommandHistory to track/revert text edits
+//
+// The history is made of the Edits the commands made, not of copies of
+// the document, so it grows with the size of the edits, not with the
+// size of the document. On top of that, the history keeps within a memory
+// budget: once the edits it holds take more than that, the oldest ones
+// are dropped and can no longer be undone. SpilledHistory keeps them in a
+// file instead.
+class CommandHistory implements Closeable {
+  private final Deque<Edit> undo = new ArrayDeque<>();
+  private final Deque<Edit> redo = new ArrayDeque<>();
+  private final long budgetBytes;
+  private long bytes;
+  private long dropped;
+
+  public CommandHistory() {
+    this(64L * 1024 * 1024);
+  }
+
+  public CommandHistory(long budgetBytes) {
+    this.budgetBytes = budgetBytes;
+  }
+
+  public void push(Command c) {
+    Edit edit = c.edit();
+    if (edit == null) {
+      return;
+    }
+    // A new edit makes whatever was undone impossible to redo.
+    for (Edit undone : redo) {
+      bytes -= undone.bytes();
+    }
+    redo.clear();
+    undo.push(edit);
+    bytes += edit.bytes();
+    while (bytes > budgetBytes && undo.size() > 1) {
+      bytes -= undo.removeLast().bytes();
+      dropped++;
+    }
+  }
+
+  // The edit to undo next, or null; it moves over to the redo side.
+  public Edit undo() {
+    Edit edit = undo.poll();
+    if (edit != null) {
+      redo.push(edit);
+    }
+    return edit;
+  }
+
+  // The edit to redo next, or null; it moves back to the undo side.
+  public Edit redo() {
+    Edit edit = redo.poll();
+    if (edit != null) {
+      undo.push(edit);
+    }
+    return edit;
+  }
+
+  public boolean isEmpty() { return undo.isEmpty(); }
+
+  // How many edits the history holds.
+  public int size() { return undo.size() + redo.size(); }
+
+  // Roughly what the edits on the heap take.
+  public long bytes() { return bytes; }
+
+  // How many edits were dropped to stay within the budget.
+  public long dropped() { return dropped; }
+
+  // Releases whatever the history keeps outside the heap; an in-memory
+  // history has nothing to release.
+  @Override
+  public void close() throws IOException {
+  }
+}
+
+// A CommandHistory that is never dropped from: every edit is appended to
+// a memory-mapped file as soon as it is pushed, and only the most recent
+// ones are also kept on the heap, in a ring of parallel arrays. Undoing
+// further back than the ring reads the edits back from the file, one at a
+// time, so undo is unlimited while the heap footprint stays the same
+// however long the session. The file also records how far the user has
+// undone, so a history opened again on the same file (with the document
+// as it was) carries on where it left off, e.g. after a restart.
+//
+// The file is mapped in windows of WINDOW bytes, each mapped the first
+// time it is touched, so it can grow past the 2 GB a single mapping can
+// cover. Offsets into it are longs; the only limits left are the disk and
+// Integer.MAX_VALUE edits.
+//
+// The file starts with the magic number and two copies of the header,
+// written in turn: generation, count, position, positionOffset, end and
+// a checksum of those. Opening the file takes the newer copy whose
+// checksum matches, so a header that was half written when the process
+// stopped is never used. In that case the older copy is taken without its
+// redo side, which the interrupted push may have overwritten.
+//
+// After the header comes one record per edit:
+//   int length, int offset, int removedLength, int insertedLength,
+//   removed and inserted as UTF-16 chars, padding, int length
+// The length at both ends lets undo step backwards and redo forwards.
+// Records are padded to a multiple of 4 bytes, so no int or char ever
+// straddles two windows.
+class SpilledHistory extends CommandHistory {
+  private static final int MAGIC = 0x48495333; // "HIS3"
+  private static final int SLOT = 40;
+  private static final int HEADER = 8 + 2 * SLOT;
+  private static final int RECORD_OVERHEAD = 20;
+  private static final int WINDOW_BITS = 23;
+  private static final long WINDOW = 1L << WINDOW_BITS; // 8 MB
+
+  private final FileChannel channel;
+  private final List<MappedByteBuffer> windows = new ArrayList<>();
+  // Edits 0 to position - 1 can be undone, position to count - 1 redone.
+  private int count;
+  private int position;
+  // Where the record of edit number position starts, and where the last
+  // record ends.
+  private long positionOffset;
+  private long end;
+  // Bumped on every header write; its lowest bit picks the copy.
+  private long generation;
+
+  // The ring: edit number seq sits in slot seq % capacity if it is on the
+  // heap at all.
+  private final long[] sequences;
+  private final int[] offsets;
+  private final String[] removed;
+  private final String[] inserted;
+
+  // Opens the history in the file, or starts a new one if the file is
+  // empty or doesn't exist. At most inMemory edits are kept on the heap.
+  public SpilledHistory(Path file, int inMemory) {
+    if (inMemory <= 0) {
+      throw new IllegalArgumentException("inMemory must be positive: " + inMemory);
+    }
+    try {
+      channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    if (getInt(0) == MAGIC) {
+      readHeader();
+    } else {
+      putInt(0, MAGIC);
+      positionOffset = HEADER;
+      end = HEADER;
+      writeHeader();
+      writeHeader();
+    }
+    sequences = new long[inMemory];
+    Arrays.fill(sequences, -1);
+    offsets = new int[inMemory];
+    removed = new String[inMemory];
+    inserted = new String[inMemory];
+  }
+
+  @Override
+  public void push(Command c) {
+    Edit edit = c.edit();
+    if (edit == null) {
+      return;
+    }
+    // A new edit makes whatever was undone impossible to redo, so it goes
+    // where the first of those was.
+    long start = positionOffset;
+    long length = (RECORD_OVERHEAD + 2L * (edit.removed.length() + edit.inserted.length()) + 3) & ~3L;
+    if (length > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Edit too large for the history: " + length + " bytes");
+    }
+    putInt(start, (int) length);
+    putInt(start + 4, edit.offset);
+    putInt(start + 8, edit.removed.length());
+    putInt(start + 12, edit.inserted.length());
+    long at = putChars(start + 16, edit.removed);
+    putChars(at, edit.inserted);
+    putInt(start + length - 4, (int) length);
+    cache(position, edit);
+    position++;
+    count = position;
+    positionOffset = start + length;
+    end = positionOffset;
+    writeHeader();
+  }
+
+  // The edit to undo next, or null if there is none.
+  @Override
+  public Edit undo() {
+    if (position == 0) {
+      return null;
+    }
+    long start = positionOffset - getInt(positionOffset - 4);
+    Edit edit = edit(position - 1, start);
+    position--;
+    positionOffset = start;
+    writeHeader();
+    return edit;
+  }
+
+  // The edit to redo next, or null if there is none.
+  @Override
+  public Edit redo() {
+    if (position == count) {
+      return null;
+    }
+    Edit edit = edit(position, positionOffset);
+    positionOffset += getInt(positionOffset);
+    position++;
+    writeHeader();
+    return edit;
+  }
+
+  @Override
+  public boolean isEmpty() { return position == 0; }
+
+  // How many edits the history holds, on disk and on the heap.
+  @Override
+  public int size() { return count; }
+
+  // How much of the file the history uses; the file itself grows a
+  // window at a time.
+  public long fileBytes() { return end; }
+
+  // Roughly what the edits on the heap take.
+  @Override
+  public long bytes() {
+    long bytes = 0;
+    for (int slot = 0; slot < sequences.length; slot++) {
+      if (sequences[slot] >= 0) {
+        bytes += 64 + 2L * (removed[slot].length() + inserted[slot].length());
+      }
+    }
+    return bytes;
+  }
+
+  // Flushes the file to disk and closes it.
+  @Override
+  public void close() throws IOException {
+    for (MappedByteBuffer window : windows) {
+      if (window != null) {
+        window.force();
+      }
+    }
+    channel.close();
+  }
+
+  private Edit edit(int seq, long start) {
+    int slot = seq % sequences.length;
+    if (sequences[slot] == seq) {
+      return new Edit(offsets[slot], removed[slot], inserted[slot]);
+    }
+    // Spilled: read it back from the file and keep it around, as the
+    // next undo or redo is likely to be close by.
+    int removedLength = getInt(start + 8);
+    int insertedLength = getInt(start + 12);
+    Edit edit = new Edit(getInt(start + 4), getChars(start + 16, removedLength),
+      getChars(start + 16 + 2L * removedLength, insertedLength));
+    cache(seq, edit);
+    return edit;
+  }
+
+  private void cache(int seq, Edit edit) {
+    int slot = seq % sequences.length;
+    sequences[slot] = seq;
+    offsets[slot] = edit.offset;
+    removed[slot] = edit.removed;
+    inserted[slot] = edit.inserted;
+  }
+
+  private void readHeader() {
+    boolean first = validSlot(8);
+    boolean second = validSlot(8 + SLOT);
+    if (!first && !second) {
+      throw new IllegalStateException("History file has no valid header");
+    }
+    int at = first && (!second || getLong(8) > getLong(8 + SLOT)) ? 8 : 8 + SLOT;
+    generation = getLong(at);
+    count = getInt(at + 8);
+    position = getInt(at + 12);
+    positionOffset = getLong(at + 16);
+    end = getLong(at + 24);
+    if (!first || !second) {
+      // The other copy was being written: drop what it may have clobbered.
+      count = position;
+      end = positionOffset;
+    }
+  }
+
+  private void writeHeader() {
+    generation++;
+    int at = 8 + (int) (generation & 1) * SLOT;
+    putLong(at, generation);
+    putInt(at + 8, count);
+    putInt(at + 12, position);
+    putLong(at + 16, positionOffset);
+    putLong(at + 24, end);
+    putLong(at + 32, checksum(generation, count, position, positionOffset, end));
+  }
+
+  private boolean validSlot(int at) {
+    return getLong(at + 32) == checksum(getLong(at), getInt(at + 8), getInt(at + 12),
+      getLong(at + 16), getLong(at + 24));
+  }
+
+  private static long checksum(long generation, int count, int position, long positionOffset, long end) {
+    long h = mix(0x9E3779B97F4A7C15L, generation);
+    h = mix(h, count);
+    h = mix(h, position);
+    h = mix(h, positionOffset);
+    return mix(h, end);
+  }
+
+  private static long mix(long h, long value) {
+    h = (h ^ value) * 0xBF58476D1CE4E5B9L;
+    return h ^ (h >>> 31);
+  }
+
+  // The window holding the byte at the offset. Mapping a window past the
+  // end of the file grows the file to cover it.
+  private MappedByteBuffer window(long offset) {
+    int index = (int) (offset >>> WINDOW_BITS);
+    while (windows.size() <= index) {
+      windows.add(null);
+    }
+    MappedByteBuffer window = windows.get(index);
+    if (window == null) {
+      try {
+        window = channel.map(FileChannel.MapMode.READ_WRITE, index * WINDOW, WINDOW);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      windows.set(index, window);
+    }
+    return window;
+  }
+
+  // Where the offset falls inside its window.
+  private static int local(long offset) {
+    return (int) (offset & (WINDOW - 1));
+  }
+
+  private int getInt(long offset) {
+    return window(offset).getInt(local(offset));
+  }
+
+  private void putInt(long offset, int value) {
+    window(offset).putInt(local(offset), value);
+  }
+
+  private long getLong(long offset) {
+    return window(offset).getLong(local(offset));
+  }
+
+  private void putLong(long offset, long value) {
+    window(offset).putLong(local(offset), value);
+  }
+
+  private long putChars(long at, String text) {
+    for (int i = 0; i < text.length(); i++) {
+      window(at).putChar(local(at), text.charAt(i));
+      at += 2;
+    }
+    return at;
+  }
+
+  private String getChars(long at, int length) {
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = window(at).getChar(local(at));
+      at += 2;
+    }
+    return new String(chars);
+  }
+}
+
+/*
+Receiver (Editor) knows how to perform the work needed to carryout the request. 
+
+Editor is also the Invoker
+Invoker holds a command and at some point asks the command 
+to carry out a request by calling its execute() method
+*/
+// The editor itself needs no display: it is a TextDocument plus a
+// selection, a clipboard and the history. EditorWindow shows it on screen.
+class Editor {
+  public final TextDocument document;
+  public String clipboard;
+  CommandHistory history = new CommandHistory();
+  // When set, everything done in the editor is recorded here.
+  CommandLog log;
+  // The caret is at selectionEnd.
+  private int selectionStart;
+  private int selectionEnd;
+
+  public Editor() {
+    this("");
+  }
+
+  public Editor(String text) {
+    this.document = new TextDocument(text);
+  }
+
+  public void select(int start, int end) {
+    selectionStart = Math.max(0, Math.min(start, end));
+    selectionEnd = Math.min(document.length(), Math.max(start, end));
+  }
+
+  public void setCaret(int position) {
+    select(position, position);
+  }
+
+  public int caret() {
+    return selectionEnd;
+  }
+
+  public int selectionStart() {
+    return selectionStart;
+  }
+
+  public String selectedText() {
+    return document.text().substring(selectionStart, selectionEnd);
+  }
+
+  public String text() {
+    return document.text().toString();
+  }
+
+  void executeCommand(Command command) {
+    if (log != null) {
+      log.command(this, command);
+    }
+    if (command.execute()) {
+      history.push(command);
+    }
+    if (log != null) {
+      log.executed(this);
+    }
+  }
+
+  // Returns whether there was anything to undo.
+  boolean undo() {
+    Edit edit = history.undo();
+    if (edit == null) {
+      return false;
+    }
+    if (log != null) {
+      log.undo();
+    }
+    apply(edit.inverse());
+    if (log != null) {
+      log.executed(this);
+    }
+    return true;
+  }
 
-Main.java
+  // Returns whether there was anything to redo.
+  boolean redo() {
+    Edit edit = history.redo();
+    if (edit == null) {
+      return false;
+    }
+    if (log != null) {
+      log.redo();
+    }
+    apply(edit);
+    if (log != null) {
+      log.executed(this);
+    }
+    return true;
+  }
 
-Source: https://refactoring.guru/design-patterns/command/java/example
-**/
+  void apply(Edit edit) {
+    document.apply(edit);
+    setCaret(edit.offset + edit.inserted.length());
+  }
+}
 
-import java.util.Stack;
-import javax.swing.*;
-import java.awt.*;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
+// A change to a whole document, made by one writer: a run of parts that
+// each keep (retain), insert or delete some characters, walking the
+// document from start to end. An Edit is retain, delete, insert, retain;
+// all the edits a writer makes while waiting for the server compose into
+// one Operation, however many there are.
+//
+// transform() takes two operations made at the same time on the same
+// text and turns each into one that applies after the other, so that both
+// orders give the same text. That is all a CollabServer needs for every
+// copy of the document to end up the same. Both compose() and transform()
+// walk the two operations side by side, so they take time in proportion
+// to their number of parts, not to the length of the document.
+final class Operation {
+  private static final int RETAIN = 0;
+  private static final int INSERT = 1;
+  private static final int DELETE = 2;
 
-// Command declares and interface for all commands
-abstract class Command {
-  public Editor editor;
-  private String backup;
+  // text is what is inserted or deleted, null for a retain.
+  private static final class Part {
+    final int kind;
+    final int length;
+    final String text;
 
-  Command(Editor editor) {
-    this.editor = editor;
+    Part(int kind, int length, String text) {
+      this.kind = kind;
+      this.length = length;
+      this.text = text;
+    }
+
+    // What is left of the part after its first n characters, or null if
+    // nothing is.
+    Part skip(int n) {
+      if (n == length) {
+        return null;
+      }
+      return new Part(kind, length - n, text == null ? null : text.substring(n));
+    }
+
+    String head(int n) {
+      return text.substring(0, n);
+    }
   }
 
-  void backup() {
-    backup = editor.textField.getText();
+  private final List<Part> parts = new ArrayList<>();
+  // The length of the text the operation applies to, and of the result.
+  private int baseLength;
+  private int targetLength;
+
+  // The operation that makes edit to a text of baseLength characters.
+  static Operation of(Edit edit, int baseLength) {
+    Operation op = new Operation();
+    op.retain(edit.offset);
+    op.delete(edit.removed);
+    op.insert(edit.inserted);
+    op.retain(baseLength - edit.offset - edit.removed.length());
+    return op;
   }
 
-  public void undo() {
-    editor.textField.setText(backup);
+  public int baseLength() {
+    return baseLength;
   }
 
-  public abstract boolean execute();
-}
+  public boolean isNoop() {
+    for (Part part : parts) {
+      if (part.kind != RETAIN) {
+        return false;
+      }
+    }
+    return true;
+  }
 
-// CopyCommand (a ConcreteCommand) defintes binding between 
-// action/s (getSelectedText()) and a Receiver (Editor)
-class CopyCommand extends Command {
+  private void retain(int n) {
+    if (n == 0) {
+      return;
+    }
+    baseLength += n;
+    targetLength += n;
+    Part last = last(1);
+    if (last != null && last.kind == RETAIN) {
+      parts.set(parts.size() - 1, new Part(RETAIN, last.length + n, null));
+    } else {
+      parts.add(new Part(RETAIN, n, null));
+    }
+  }
 
-  public CopyCommand(Editor editor) {
-    super(editor);
+  // An insert next to a delete always goes first, so that the same change
+  // is always made of the same parts.
+  private void insert(String text) {
+    if (text.isEmpty()) {
+      return;
+    }
+    targetLength += text.length();
+    Part last = last(1);
+    if (last != null && last.kind == DELETE) {
+      Part before = last(2);
+      if (before != null && before.kind == INSERT) {
+        parts.set(parts.size() - 2, new Part(INSERT, before.length + text.length(), before.text + text));
+      } else {
+        parts.add(parts.size() - 1, new Part(INSERT, text.length(), text));
+      }
+    } else if (last != null && last.kind == INSERT) {
+      parts.set(parts.size() - 1, new Part(INSERT, last.length + text.length(), last.text + text));
+    } else {
+      parts.add(new Part(INSERT, text.length(), text));
+    }
   }
 
-  @Override
-  public boolean execute() {
-    editor.clipboard = editor.textField.getSelectedText();
-    return false;
+  private void delete(String text) {
+    if (text.isEmpty()) {
+      return;
+    }
+    baseLength += text.length();
+    Part last = last(1);
+    if (last != null && last.kind == DELETE) {
+      parts.set(parts.size() - 1, new Part(DELETE, last.length + text.length(), last.text + text));
+    } else {
+      parts.add(new Part(DELETE, text.length(), text));
+    }
+  }
+
+  private Part last(int n) {
+    return parts.size() < n ? null : parts.get(parts.size() - n);
+  }
+
+  private void add(Part part, int n) {
+    if (part.kind == RETAIN) {
+      retain(n);
+    } else if (part.kind == INSERT) {
+      insert(part.head(n));
+    } else {
+      delete(part.head(n));
+    }
+  }
+
+  // Applies the operation to the document, one Edit per insert or delete.
+  void applyTo(TextDocument document) {
+    if (document.length() != baseLength) {
+      throw new IllegalStateException("Operation for " + baseLength + " characters applied to " + document.length());
+    }
+    int offset = 0;
+    for (Part part : parts) {
+      if (part.kind == RETAIN) {
+        offset += part.length;
+      } else if (part.kind == INSERT) {
+        document.apply(new Edit(offset, "", part.text));
+        offset += part.length;
+      } else {
+        document.apply(new Edit(offset, part.text, ""));
+      }
+    }
+  }
+
+  // The operation that undoes this one.
+  Operation inverse() {
+    Operation inverse = new Operation();
+    for (Part part : parts) {
+      if (part.kind == RETAIN) {
+        inverse.retain(part.length);
+      } else if (part.kind == INSERT) {
+        inverse.delete(part.text);
+      } else {
+        inverse.insert(part.text);
+      }
+    }
+    return inverse;
+  }
+
+  // One operation that does what a and then b do.
+  static Operation compose(Operation a, Operation b) {
+    if (a.targetLength != b.baseLength) {
+      throw new IllegalArgumentException("Cannot compose: " + a.targetLength + " != " + b.baseLength);
+    }
+    Operation result = new Operation();
+    Iterator<Part> first = a.parts.iterator();
+    Iterator<Part> second = b.parts.iterator();
+    Part x = next(first);
+    Part y = next(second);
+    while (x != null || y != null) {
+      if (x != null && x.kind == DELETE) {
+        result.delete(x.text);
+        x = next(first);
+        continue;
+      }
+      if (y != null && y.kind == INSERT) {
+        result.insert(y.text);
+        y = next(second);
+        continue;
+      }
+      int n = Math.min(x.length, y.length);
+      if (y.kind == RETAIN) {
+        result.add(x, n);
+      } else if (x.kind == RETAIN) {
+        result.delete(y.head(n));
+      }
+      // (b deleting what a inserted leaves nothing of either.)
+      x = skip(x, n, first);
+      y = skip(y, n, second);
+    }
+    return result;
+  }
+
+  // Transforms two operations made on the same text past each other: left
+  // is returned so that it applies after right, and right so that it
+  // applies after left. Where both insert at the same place, what left
+  // inserts goes first.
+  static Transformed transform(Operation left, Operation right) {
+    if (left.baseLength != right.baseLength) {
+      throw new IllegalArgumentException("Cannot transform: " + left.baseLength + " != " + right.baseLength);
+    }
+    Operation leftAfter = new Operation();
+    Operation rightAfter = new Operation();
+    Iterator<Part> first = left.parts.iterator();
+    Iterator<Part> second = right.parts.iterator();
+    Part x = next(first);
+    Part y = next(second);
+    while (x != null || y != null) {
+      if (x != null && x.kind == INSERT) {
+        leftAfter.insert(x.text);
+        rightAfter.retain(x.length);
+        x = next(first);
+        continue;
+      }
+      if (y != null && y.kind == INSERT) {
+        leftAfter.retain(y.length);
+        rightAfter.insert(y.text);
+        y = next(second);
+        continue;
+      }
+      int n = Math.min(x.length, y.length);
+      if (x.kind == RETAIN && y.kind == RETAIN) {
+        leftAfter.retain(n);
+        rightAfter.retain(n);
+      } else if (x.kind == DELETE && y.kind == RETAIN) {
+        leftAfter.delete(x.head(n));
+      } else if (x.kind == RETAIN && y.kind == DELETE) {
+        rightAfter.delete(y.head(n));
+      }
+      // (Both deleting the same characters leaves nothing for either.)
+      x = skip(x, n, first);
+      y = skip(y, n, second);
+    }
+    return new Transformed(leftAfter, rightAfter);
+  }
+
+  // Where a position (a caret, say) ends up once the operation is applied.
+  int transform(int position) {
+    int index = 0;
+    int moved = position;
+    for (Part part : parts) {
+      if (index >= position) {
+        break;
+      }
+      if (part.kind == RETAIN) {
+        index += part.length;
+      } else if (part.kind == INSERT) {
+        moved += part.length;
+      } else {
+        moved -= Math.min(part.length, position - index);
+        index += part.length;
+      }
+    }
+    return moved;
+  }
+
+  private static Part next(Iterator<Part> parts) {
+    return parts.hasNext() ? parts.next() : null;
+  }
+
+  private static Part skip(Part part, int n, Iterator<Part> parts) {
+    Part rest = part.skip(n);
+    return rest != null ? rest : next(parts);
+  }
+
+  static final class Transformed {
+    final Operation left;
+    final Operation right;
+
+    Transformed(Operation left, Operation right) {
+      this.left = left;
+      this.right = right;
+    }
   }
 }
 
-// PasteCommand (a ConcreteCommand) defintes binding between 
-// action/s (insert() and getCaretPosition()) and a Receiver (Editor)
-class PasteCommand extends Command {
+// What goes over the wire between a CollabServer and its clients. A
+// client submits an operation made on revision (the number of operations
+// of the server it has seen); the server sends every client the
+// operations of the others, in the order it applied them, and
+// acknowledges each submission.
+final class Message {
+  static final Message SYNC = new Message(-1, 0, null, false);
 
-  public PasteCommand(Editor editor) {
-    super(editor);
+  final int site;
+  final int revision;
+  final Operation op;
+  final boolean ack;
+
+  Message(int site, int revision, Operation op, boolean ack) {
+    this.site = site;
+    this.revision = revision;
+    this.op = op;
+    this.ack = ack;
   }
+}
 
-  @Override
-  public boolean execute() {
-    if (editor.clipboard == null || editor.clipboard.isEmpty()) return false;
+// Puts the operations of all writers in one order. Submissions come in
+// on one queue and are handled by one thread, in turn: each is
+// transformed past everything the server applied since the revision it
+// was made on, applied, and passed on to every other client.
+//
+// This is the central-server flavour of operational transformation (as in
+// Jupiter and Google Wave): since every client only ever has to reconcile
+// its own pending operations with the server's order, transform() only
+// needs the simple property above, not the much harder one peer-to-peer
+// OT needs.
+//
+// The server only keeps the operations a submission may still have to be
+// transformed past: a client's revisions only go up, so nothing older than
+// the revision of the latest submission from every client is needed.
+class CollabServer {
+  final TextDocument document;
+  final BlockingQueue<Message> inbox = new LinkedBlockingQueue<>();
+  // The operations applied here from the one numbered historyBase on.
+  private final List<Operation> history = new ArrayList<>();
+  private int historyBase;
+  private final List<CollabClient> clients = new ArrayList<>();
+  // By site, the revision the client's latest submission was made on.
+  private int[] submitted = new int[0];
+  private Thread thread;
+  private volatile CountDownLatch synced;
 
-    backup();
-    editor.textField.insert(editor.clipboard, editor.textField.getCaretPosition());
-    return true;
+  CollabServer(String text) {
+    this.document = new TextDocument(text);
+  }
+
+  // Adds a client editing a copy of the document as it is now. Only call
+  // this before start().
+  CollabClient connect() {
+    int revision = revision();
+    CollabClient client = new CollabClient(clients.size(), document.text().toString(), revision, inbox);
+    clients.add(client);
+    submitted = Arrays.copyOf(submitted, clients.size());
+    submitted[client.site] = revision;
+    return client;
+  }
+
+  // How many operations the server has applied.
+  int revision() {
+    return historyBase + history.size();
+  }
+
+  // How many of those it still keeps.
+  int historySize() {
+    return history.size();
+  }
+
+  void start() {
+    thread = new Thread(() -> {
+      try {
+        while (true) {
+          handle(inbox.take());
+        }
+      } catch (InterruptedException e) {
+        // stopped
+      }
+    }, "collab-server");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  void stop() {
+    thread.interrupt();
+  }
+
+  // Waits until everything submitted so far has been applied and sent on.
+  void sync() throws InterruptedException {
+    synced = new CountDownLatch(1);
+    inbox.put(Message.SYNC);
+    synced.await();
+  }
+
+  private void handle(Message message) {
+    if (message == Message.SYNC) {
+      synced.countDown();
+      return;
+    }
+    Operation op = message.op;
+    for (int i = message.revision - historyBase; i < history.size(); i++) {
+      op = Operation.transform(op, history.get(i)).left;
+    }
+    op.applyTo(document);
+    history.add(op);
+    submitted[message.site] = message.revision;
+    Message applied = new Message(message.site, revision(), op, false);
+    Message ack = new Message(message.site, revision(), null, true);
+    for (CollabClient client : clients) {
+      client.inbox.add(client.site == message.site ? ack : applied);
+    }
+    forget();
+  }
+
+  // Drops the operations no client can submit against any more, once
+  // there are enough of them to be worth the copy.
+  private void forget() {
+    if (history.size() <= 128) {
+      return;
+    }
+    int keepFrom = revision();
+    for (int revision : submitted) {
+      keepFrom = Math.min(keepFrom, revision);
+    }
+    int drop = keepFrom - historyBase;
+    if (drop > history.size() / 2) {
+      history.subList(0, drop).clear();
+      historyBase = keepFrom;
+    }
   }
 }
 
-// CutCommand (a ConcreteCommand) defintes binding between 
-// action/s (getText(), getSelectedText(), and setText()) and a Receiver (Editor)
-class CutCommand extends Command {
+// One writer: an Editor with its own copy of the document, kept in step
+// with a CollabServer.
+//
+// Commands run on the editor as usual and show up at once. Their
+// operations go to the server one at a time: while one is waiting to be
+// acknowledged, the next ones are composed into a buffer, and operations
+// of others coming in from the server are transformed past both before
+// being applied here. A client is not thread-safe: one thread edits with
+// it and calls receive().
+//
+// Undo is per writer: undo() takes back this writer's last command,
+// transformed past everything that happened since, and leaves what the
+// others did alone. It goes to the server like any other edit. The
+// editor keeps no history of its own, and its undo() comes here, as an
+// edit it kept would not have been transformed past what the others did.
+class CollabClient {
+  private static final int MAX_UNDO = 100;
 
-  public CutCommand(Editor editor) {
-      super(editor);
+  final int site;
+  final Editor editor;
+  final BlockingQueue<Message> inbox = new LinkedBlockingQueue<>();
+  private final BlockingQueue<Message> server;
+  private int revision;
+  // Sent and not acknowledged yet, transformed past whatever came in
+  // since; and what was done here after that, not sent yet.
+  private Operation inflight;
+  private Operation buffer;
+
+  // Every operation applied here, oldest first, from the one numbered
+  // appliedBase on: what an undo has to be transformed past.
+  private final List<Operation> applied = new ArrayList<>();
+  private long appliedBase;
+  // The numbers of the operations of the commands that can be undone.
+  private final ArrayDeque<Long> undoStack = new ArrayDeque<>();
+  private boolean remote;
+  private boolean undoing;
+
+  CollabClient(int site, String text, int revision, BlockingQueue<Message> server) {
+    this.site = site;
+    this.editor = new Editor(text) {
+      @Override
+      boolean undo() {
+        return CollabClient.this.undo();
+      }
+
+      @Override
+      boolean redo() {
+        return false;
+      }
+    };
+    editor.history = new CommandHistory() {
+      @Override
+      public void push(Command c) {
+      }
+    };
+    this.revision = revision;
+    this.server = server;
+    editor.document.addListener(edit -> {
+      if (!remote) {
+        local(edit);
+      }
+    });
   }
 
-  @Override
-  public boolean execute() {
-    if (editor.textField.getSelectedText().isEmpty()) return false;
+  void executeCommand(Command command) {
+    editor.executeCommand(command);
+  }
 
-    backup();
-    String source = editor.textField.getText();
-    editor.clipboard = editor.textField.getSelectedText();
-    editor.textField.setText(cutString(source));
+  public boolean undo() {
+    Long last = undoStack.pollLast();
+    if (last == null) {
+      return false;
+    }
+    int index = (int) (last - appliedBase);
+    Operation inverse = applied.get(index).inverse();
+    for (int i = index + 1; i < applied.size(); i++) {
+      inverse = Operation.transform(inverse, applied.get(i)).left;
+    }
+    int caret = inverse.transform(editor.caret());
+    undoing = true;
+    try {
+      inverse.applyTo(editor.document);
+    } finally {
+      undoing = false;
+    }
+    editor.setCaret(caret);
     return true;
   }
 
-  private String cutString(String source) {
-    String start = source.substring(0, editor.textField.getSelectionStart());
-    String end = source.substring(editor.textField.getSelectionEnd());
-    return start + end;
+  // True if everything done here has been acknowledged by the server.
+  public boolean isSettled() {
+    return inflight == null && buffer == null;
   }
-}
 
-// CommandHistory to track/revert text edits
-class CommandHistory {
-  private Stack<Command> history = new Stack<>();
+  // Handles whatever the server has sent so far, without waiting.
+  public void receive() {
+    Message message;
+    while ((message = inbox.poll()) != null) {
+      handle(message);
+    }
+  }
 
-  public void push(Command c) {
-    history.push(c);
+  // Like receive(), but waits up to timeoutMillis for the first message.
+  public void receive(long timeoutMillis) throws InterruptedException {
+    Message message = inbox.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    if (message != null) {
+      handle(message);
+      receive();
+    }
   }
 
-  public Command pop() {
-    return history.pop();
+  private void handle(Message message) {
+    revision++;
+    if (message.ack) {
+      inflight = null;
+      flush();
+      return;
+    }
+    Operation op = message.op;
+    if (inflight != null) {
+      Operation.Transformed past = Operation.transform(inflight, op);
+      inflight = past.left;
+      op = past.right;
+    }
+    if (buffer != null) {
+      Operation.Transformed past = Operation.transform(buffer, op);
+      buffer = past.left;
+      op = past.right;
+    }
+    int start = op.transform(editor.selectionStart());
+    int caret = op.transform(editor.caret());
+    remote = true;
+    try {
+      op.applyTo(editor.document);
+    } finally {
+      remote = false;
+    }
+    applied.add(op);
+    editor.select(start, caret);
+    forget();
   }
 
-  public boolean isEmpty() { return history.isEmpty(); }
-}
+  private void local(Edit edit) {
+    Operation op = Operation.of(edit, editor.document.length() - edit.inserted.length() + edit.removed.length());
+    if (op.isNoop()) {
+      return;
+    }
+    if (!undoing) {
+      undoStack.addLast(appliedBase + applied.size());
+      if (undoStack.size() > MAX_UNDO) {
+        undoStack.pollFirst();
+      }
+    }
+    applied.add(op);
+    buffer = buffer == null ? op : Operation.compose(buffer, op);
+    flush();
+    forget();
+  }
 
-/*
-Receiver (Editor) knows how to perform the work needed to carryout the request. 
+  private void flush() {
+    if (inflight == null && buffer != null) {
+      inflight = buffer;
+      buffer = null;
+      server.add(new Message(site, revision, inflight, false));
+    }
+  }
+
+  // Drops the operations no undo has to go past any more, once there are
+  // enough of them to be worth the copy.
+  private void forget() {
+    long keepFrom = undoStack.isEmpty() ? appliedBase + applied.size() : undoStack.peekFirst();
+    int drop = (int) (keepFrom - appliedBase);
+    if (drop > 64 && drop > applied.size() / 2) {
+      applied.subList(0, drop).clear();
+      appliedBase = keepFrom;
+    }
+  }
+}
 
-Editor is also the Invoker
-Invoker holds a command and at some point asks the command 
-to carry out a request by calling its execute() method
-*/
 // GUI of text editor
-class Editor {
-  public JTextArea textField;
-  public String clipboard;
-  private CommandHistory history = new CommandHistory();
+//
+// A thin view of an Editor: the text area shows the editor's document and
+// follows its edits, and whatever the user types goes to the editor as a
+// TypeCommand. The document stays the one place the text lives in.
+class EditorWindow {
+  private final Editor editor;
+  private final JTextArea textField = new JTextArea();
+  // Set while an edit from the document is copied into the text area, so
+  // that the filter below lets it through.
+  private boolean updating;
+
+  EditorWindow(Editor editor) {
+    this.editor = editor;
+    textField.setText(editor.text());
+    editor.document.addListener(edit -> {
+      updating = true;
+      try {
+        textField.replaceRange(edit.inserted, edit.offset, edit.offset + edit.removed.length());
+        textField.setCaretPosition(editor.caret());
+      } finally {
+        updating = false;
+      }
+    });
+    ((AbstractDocument) textField.getDocument()).setDocumentFilter(new DocumentFilter() {
+      @Override
+      public void insertString(FilterBypass fb, int offset, String text, AttributeSet attr)
+          throws BadLocationException {
+        replace(fb, offset, 0, text, attr);
+      }
+
+      @Override
+      public void remove(FilterBypass fb, int offset, int length) throws BadLocationException {
+        replace(fb, offset, length, "", null);
+      }
+
+      @Override
+      public void replace(FilterBypass fb, int offset, int length, String text, AttributeSet attrs)
+          throws BadLocationException {
+        String inserted = text == null ? "" : text;
+        if (updating) {
+          fb.replace(offset, length, inserted, attrs);
+          return;
+        }
+        String removed = editor.document.text().substring(offset, offset + length);
+        editor.executeCommand(new TypeCommand(editor, offset, removed, inserted));
+      }
+    });
+  }
 
   public void init() {
     JFrame frame = new JFrame("Text editor (type & use buttons, Luke!)");
@@ -138,7 +1813,6 @@ class Editor {
     frame.setContentPane(content);
     frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
     content.setLayout(new BoxLayout(content, BoxLayout.Y_AXIS));
-    textField = new JTextArea();
     textField.setLineWrap(true);
     content.add(textField);
     JPanel buttons = new JPanel(new FlowLayout(FlowLayout.CENTER));
@@ -146,7 +1820,7 @@ class Editor {
     JButton ctrlX = new JButton("Ctrl+X");
     JButton ctrlV = new JButton("Ctrl+V");
     JButton ctrlZ = new JButton("Ctrl+Z");
-    Editor editor = this;
+    JButton ctrlY = new JButton("Ctrl+Y");
     ctrlC.addActionListener(new ActionListener() {
       @Override
       public void actionPerformed(ActionEvent e) {
@@ -168,39 +1842,407 @@ class Editor {
     ctrlZ.addActionListener(new ActionListener() {
       @Override
       public void actionPerformed(ActionEvent e) {
-        undo();
+        editor.undo();
+      }
+    });
+    ctrlY.addActionListener(new ActionListener() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        editor.redo();
       }
     });
     buttons.add(ctrlC);
     buttons.add(ctrlX);
     buttons.add(ctrlV);
     buttons.add(ctrlZ);
+    buttons.add(ctrlY);
     content.add(buttons);
     frame.setSize(450, 200);
     frame.setLocationRelativeTo(null);
     frame.setVisible(true);
   }
 
+  // Hands the selection in the text area over to the editor first.
   private void executeCommand(Command command) {
-    if (command.execute()) {
-      history.push(command);
+    editor.select(textField.getSelectionStart(), textField.getSelectionEnd());
+    editor.executeCommand(command);
+  }
+}
+
+// Client
+class Main {
+  public static void main(String[] args) {
+    // Without a display (or with "bench"), run the benchmarks instead.
+    if (GraphicsEnvironment.isHeadless() || (args.length > 0 && args[0].equals("bench"))) {
+      undoMemory(10 * 1024 * 1024, 1000);
+      System.out.println();
+      editThroughput(100 * 1024 * 1024, 1_000_000);
+      System.out.println();
+      try {
+        spilledHistory(200_000);
+        System.out.println();
+        replay(2_000_000);
+        System.out.println();
+        collaboration();
+      } catch (IOException | InterruptedException e) {
+        e.printStackTrace();
+      }
+      return;
     }
+    EditorWindow window = new EditorWindow(new Editor());
+    window.init();
   }
 
-  private void undo() {
-    if (history.isEmpty()) return;
+  // Lines of 63 random letters and spaces.
+  static String sampleText(int size, Random random) {
+    StringBuilder text = new StringBuilder(size);
+    while (text.length() < size) {
+      text.append(text.length() % 64 == 63 ? '\n' : "lorem ipsum dolor sit amet ".charAt(random.nextInt(27)));
+    }
+    return text.toString();
+  }
 
-    Command command = history.pop();
-    if (command != null) {
-      command.undo();
+  // Cuts a random selection or pastes at a random place.
+  static void randomEdit(Editor editor, Random random, int i) {
+    int start = random.nextInt(editor.document.length() - 100);
+    if (i % 2 == 0) {
+      editor.select(start, start + 1 + random.nextInt(80));
+      editor.executeCommand(new CutCommand(editor));
+    } else {
+      editor.setCaret(start);
+      editor.executeCommand(new PasteCommand(editor));
     }
   }
-}
 
-// Client
-class Main {
-  public static void main(String[] args) {
-    Editor editor = new Editor();
-    editor.init();
+  // Cuts and pastes at random places in a large document, then undoes and
+  // redoes all of it, and compares what the history holds on to with what
+  // full-text backups would have held on to.
+  static void undoMemory(int documentSize, int edits) {
+    Runtime runtime = Runtime.getRuntime();
+    Random random = new Random(42);
+    String original = sampleText(documentSize, random);
+    Editor editor = new Editor(original);
+    System.gc();
+    long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+
+    long snapshotBytes = 0;
+    long began = System.nanoTime();
+    for (int i = 0; i < edits; i++) {
+      snapshotBytes += 2L * editor.document.length();
+      randomEdit(editor, random, i);
+    }
+    long editMillis = (System.nanoTime() - began) / 1_000_000;
+    System.gc();
+    long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+    String edited = editor.text();
+
+    began = System.nanoTime();
+    for (int i = 0; i < edits; i++) {
+      editor.undo();
+    }
+    boolean undone = editor.text().equals(original);
+    for (int i = 0; i < edits; i++) {
+      editor.redo();
+    }
+    boolean redone = editor.text().equals(edited);
+    long undoMillis = (System.nanoTime() - began) / 1_000_000;
+
+    System.out.println(edits + " edits on a " + documentSize / (1024 * 1024) + " MB document in " + editMillis + " ms");
+    System.out.println("full-text backups would keep " + snapshotBytes / (1024 * 1024) + " MB");
+    System.out.println("the history keeps " + editor.history.bytes() / 1024 + " KB (heap grew by "
+      + Math.max(0, heapAfter - heapBefore) / 1024 + " KB)");
+    System.out.println("undo all and redo all in " + undoMillis + " ms, back to the original: " + undone
+      + ", back to the edited text: " + redone);
+
+    // The same edits with a 16 KB budget: the oldest ones get dropped.
+    Editor small = new Editor(original.substring(0, 100_000));
+    small.history = new CommandHistory(16 * 1024);
+    small.clipboard = "pasted";
+    for (int i = 0; i < edits; i++) {
+      small.setCaret(random.nextInt(90_000));
+      small.executeCommand(new PasteCommand(small));
+    }
+    System.out.println("with a 16 KB budget: " + small.history.bytes() / 1024 + " KB kept, "
+      + small.history.dropped() + " oldest commands dropped");
+  }
+
+  // A long session with only 64 edits on the heap: the rest spill to the
+  // history file, and the session survives a "restart".
+  static void spilledHistory(int edits) throws IOException {
+    Runtime runtime = Runtime.getRuntime();
+    Random random = new Random(3);
+    String original = sampleText(1024 * 1024, random);
+    Path directory = Files.createTempDirectory("editor");
+    Path historyFile = directory.resolve("history.undo");
+    Path documentFile = directory.resolve("document.txt");
+
+    Editor editor = new Editor(original);
+    SpilledHistory history = new SpilledHistory(historyFile, 64);
+    editor.history = history;
+    System.gc();
+    long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+    for (int i = 0; i < edits; i++) {
+      randomEdit(editor, random, i);
+    }
+    System.gc();
+    long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+    System.out.println(edits + " edits, " + history.bytes() / 1024 + " KB of them on the heap, "
+      + history.fileBytes() / 1024 + " KB in the history file (heap grew by "
+      + Math.max(0, heapAfter - heapBefore) / 1024 + " KB for the document and history)");
+
+    // Undo half, save, and "restart".
+    for (int i = 0; i < edits / 2; i++) {
+      editor.undo();
+    }
+    String halfway = editor.text();
+    Files.writeString(documentFile, halfway);
+    history.close();
+
+    Editor restarted = new Editor(Files.readString(documentFile));
+    restarted.history = new SpilledHistory(historyFile, 64);
+    long began = System.nanoTime();
+    for (int i = 0; i < edits / 2; i++) {
+      restarted.undo();
+    }
+    boolean undone = restarted.text().equals(original);
+    long undoMillis = (System.nanoTime() - began) / 1_000_000;
+    System.out.println("after a restart, undid the other " + edits / 2 + " edits from disk in " + undoMillis
+      + " ms, back to the original: " + undone);
+    restarted.history.close();
+    Files.delete(historyFile);
+    Files.delete(documentFile);
+    Files.delete(directory);
+  }
+
+  // Records a random editing session on a 1 MB document, replays it from
+  // the log file onto a fresh editor, and checks both end up the same.
+  static void replay(int commands) throws IOException {
+    Random random = new Random(11);
+    String original = sampleText(1024 * 1024, random);
+    Path logFile = Files.createTempFile("session", ".cmdlog");
+    Editor recorded = new Editor(original);
+    try (CommandLog log = new CommandLog(Files.newOutputStream(logFile))) {
+      recorded.log = log;
+      for (int i = 0; i < commands; i++) {
+        int length = recorded.document.length();
+        int start = random.nextInt(length - 100);
+        switch (random.nextInt(10)) {
+          case 0:
+            recorded.select(start, start + 1 + random.nextInt(40));
+            recorded.executeCommand(new CutCommand(recorded));
+            break;
+          case 1:
+            recorded.select(start, start + 1 + random.nextInt(40));
+            recorded.executeCommand(new CopyCommand(recorded));
+            break;
+          case 2:
+            recorded.setCaret(start);
+            recorded.executeCommand(new PasteCommand(recorded));
+            break;
+          case 3:
+            recorded.undo();
+            break;
+          case 4:
+            recorded.redo();
+            break;
+          default:
+            // Typing goes on where the caret is, mostly.
+            int at = random.nextInt(20) == 0 ? start : recorded.caret();
+            recorded.executeCommand(new TypeCommand(recorded, at, "", String.valueOf((char) ('a' + random.nextInt(26)))));
+            break;
+        }
+      }
+      recorded.log = null;
+    }
+
+    Editor warmUp = new Editor(original);
+    ReplayEngine.replay(logFile, warmUp, null);
+    Editor replayed = new Editor(original);
+    long began = System.nanoTime();
+    long records = ReplayEngine.replay(logFile, replayed, null);
+    long nanos = System.nanoTime() - began;
+    System.out.println(records + " records (" + Files.size(logFile) / 1024 + " KB) replayed in " + nanos / 1_000_000
+      + " ms: " + records * 1_000_000_000L / nanos + " commands/s, same text: " + replayed.text().equals(recorded.text()));
+
+    LatencyHistogram[] byOp = new LatencyHistogram[CommandLog.NAMES.length];
+    for (int i = 1; i < byOp.length; i++) {
+      byOp[i] = new LatencyHistogram();
+    }
+    ReplayEngine.replay(logFile, new Editor(original), byOp);
+    for (int i = 1; i < byOp.length; i++) {
+      System.out.println(String.format("%-7s %9d  p50 %6d ns  p99 %6d ns  p99.9 %6d ns", CommandLog.NAMES[i],
+        byOp[i].count(), byOp[i].percentile(0.5), byOp[i].percentile(0.99), byOp[i].percentile(0.999)));
+    }
+
+    // An editor that keeps less history can't follow every undo; the
+    // replay says so instead of quietly ending up with other text.
+    Editor forgetful = new Editor(original);
+    forgetful.history = new CommandHistory(0);
+    try {
+      ReplayEngine.replay(logFile, forgetful, null);
+      System.out.println("replay with no history budget finished");
+    } catch (IllegalStateException e) {
+      System.out.println("replay with no history budget: " + e.getMessage());
+    }
+    Files.delete(logFile);
+  }
+
+  // Several writers on one document: a small session by hand, random
+  // sessions checked for convergence, and throughput by number of writers.
+  static void collaboration() throws InterruptedException {
+    CollabServer server = new CollabServer("shared ");
+    CollabClient alice = server.connect();
+    CollabClient bob = server.connect();
+    server.start();
+    alice.editor.setCaret(0);
+    alice.executeCommand(new TypeCommand(alice.editor, 0, "", "my "));
+    bob.editor.setCaret(7);
+    bob.executeCommand(new TypeCommand(bob.editor, 7, "", "notes"));
+    server.sync();
+    alice.receive();
+    bob.receive();
+    System.out.println("alice and bob typed at the same time: \"" + alice.editor.text() + "\" / \""
+      + bob.editor.text() + "\"");
+    // The editor's own undo goes through the client.
+    alice.editor.undo();
+    server.sync();
+    alice.receive();
+    bob.receive();
+    System.out.println("alice undid her typing, bob's stays: \"" + alice.editor.text() + "\" / \""
+      + bob.editor.text() + "\"");
+    server.stop();
+
+    int sessions = 100;
+    Random random = new Random(5);
+    for (int i = 0; i < sessions; i++) {
+      collaborate(2 + random.nextInt(31), 500, i);
+    }
+    System.out.println("all " + sessions + " random sessions of 2 to 32 writers converged");
+
+    int edits = 200_000;
+    for (int writers = 2; writers <= 32; writers *= 2) {
+      collaborate(writers, edits / 10 / writers, writers);
+      long nanos = collaborate(writers, edits / writers, writers);
+      System.out.println(String.format("%2d writers: %8d edits/s", writers, edits * 1_000_000_000L / nanos));
+    }
+  }
+
+  // Lets writers edit one 16 KB document at the same time, each on its own
+  // thread with its own copy, doing edits random commands (and the odd
+  // undo). Returns how long it took until every copy had seen everything,
+  // and throws if the copies don't all end up the same.
+  static long collaborate(int writers, int edits, long seed) throws InterruptedException {
+    CollabServer server = new CollabServer(sampleText(16 * 1024, new Random(seed)));
+    CollabClient[] clients = new CollabClient[writers];
+    Thread[] threads = new Thread[writers];
+    CountDownLatch start = new CountDownLatch(1);
+    for (int i = 0; i < writers; i++) {
+      CollabClient client = server.connect();
+      Random random = new Random(seed * 31 + i);
+      clients[i] = client;
+      threads[i] = new Thread(() -> {
+        try {
+          start.await();
+          for (int j = 0; j < edits; j++) {
+            randomEdit(client, random);
+            client.receive();
+            if (random.nextInt(8) == 0) {
+              Thread.yield();
+            }
+          }
+          while (!client.isSettled()) {
+            client.receive(1);
+          }
+        } catch (InterruptedException e) {
+          e.printStackTrace();
+        }
+      });
+      threads[i].start();
+    }
+    server.start();
+    long began = System.nanoTime();
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    // Everyone's edits are in, so once the server has sent them all on,
+    // every copy can catch up.
+    server.sync();
+    long nanos = System.nanoTime() - began;
+    server.stop();
+    String text = server.document.text().toString();
+    for (CollabClient client : clients) {
+      client.receive();
+      if (!client.editor.text().equals(text)) {
+        throw new IllegalStateException("Writer " + client.site + " of " + writers + " (seed " + seed
+          + ") did not converge");
+      }
+    }
+    return nanos;
+  }
+
+  // Mostly typing and deleting at the caret, with some cuts, pastes and
+  // undos.
+  static void randomEdit(CollabClient client, Random random) {
+    Editor editor = client.editor;
+    int length = editor.document.length();
+    int caret = editor.caret();
+    int kind = random.nextInt(100);
+    if (kind < 60 || length < 100) {
+      client.executeCommand(new TypeCommand(editor, caret, "", String.valueOf((char) ('a' + random.nextInt(26)))));
+    } else if (kind < 75) {
+      if (caret > 0) {
+        client.executeCommand(new TypeCommand(editor, caret - 1, editor.document.text().substring(caret - 1, caret), ""));
+      }
+    } else if (kind < 85) {
+      int from = random.nextInt(length - 20);
+      editor.select(from, from + 1 + random.nextInt(20));
+      client.executeCommand(new CutCommand(editor));
+    } else if (kind < 95) {
+      editor.setCaret(random.nextInt(length));
+      client.executeCommand(new PasteCommand(editor));
+    } else {
+      client.undo();
+    }
+  }
+
+  // Random cuts and pastes on a huge document, keeping a snapshot of the
+  // text every 100,000 edits, compared with editing a flat StringBuilder.
+  static void editThroughput(int documentSize, int edits) {
+    Runtime runtime = Runtime.getRuntime();
+    Random random = new Random(7);
+    String original = sampleText(documentSize, random);
+    Editor editor = new Editor(original);
+    List<Rope> snapshots = new ArrayList<>();
+    System.gc();
+    long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+    long began = System.nanoTime();
+    for (int i = 0; i < edits; i++) {
+      randomEdit(editor, random, i);
+      if (i % 100_000 == 0) {
+        snapshots.add(editor.document.text());
+      }
+    }
+    long nanos = System.nanoTime() - began;
+    System.gc();
+    long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+    System.out.println(edits + " edits on a " + documentSize / (1024 * 1024) + " MB rope: "
+      + edits * 1_000_000_000L / nanos + " edits/s, " + snapshots.size() + " snapshots kept in "
+      + Math.max(0, heapAfter - heapBefore) / (1024 * 1024) + " MB");
+
+    StringBuilder flat = new StringBuilder(original);
+    int flatEdits = 200;
+    began = System.nanoTime();
+    for (int i = 0; i < flatEdits; i++) {
+      int start = random.nextInt(flat.length() - 100);
+      if (i % 2 == 0) {
+        flat.delete(start, start + 1 + random.nextInt(80));
+      } else {
+        flat.insert(start, "pasted");
+      }
+    }
+    nanos = System.nanoTime() - began;
+    System.out.println(flatEdits + " edits on a " + documentSize / (1024 * 1024) + " MB StringBuilder: "
+      + flatEdits * 1_000_000_000L / nanos + " edits/s");
   }
 }
@@ -2,18 +2,34 @@
 Design Pattern - Observer
 All classes and interfaces are in a single file for quick copy-paste and test run of the code.
 
-Note: this code has no output.
-
 You may represent the classes and interfaces in separate Java files:
 
 publisher
 |_ EventManager.java
+|_ EventType.java
+|_ Retention.java
+|_ Subscription.java
+|_ EventFilter.java
+|_ ListenerIndex.java
+|_ EventBatch.java
+|_ EventJournal.java
+|_ JournaledFile.java
+|_ EventMetrics.java
+|_ ListenerMetrics.java
+|_ ListenerMetricsMBean.java
+|_ MeteredListener.java
+|_ Dispatcher.java
+|_ DirectDispatcher.java
+|_ AsyncDispatcher.java
+|_ Backpressure.java
 
 editor
 |_ Editor.java
 
 listeners
 |_ EventListener.java
+|_ BatchEventListener.java
+|_ DurableListener.java
 |_ EmailNotificationListener.java
 |_ LogOpenListener.java
 
@@ -22,33 +38,1669 @@ Main.java
 Source: https://refactoring.guru/design-patterns/observer/java/example
 **/
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+// An event type registered with an EventManager. Resolve it once with
+// EventManager.type() and keep it: notifying through the token is an
+// array lookup by id instead of hashing the name on every call.
+final class EventType {
+  final int id;
+  final String name;
+  final EventManager manager;
+
+  EventType(int id, String name, EventManager manager) {
+    this.id = id;
+    this.name = name;
+    this.manager = manager;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
+
+// How long a subscription keeps its listener alive.
+enum Retention {
+  // Until unsubscribed.
+  STRONG,
+  // Only while something else still references the listener; once it has
+  // been garbage collected the subscription quietly goes away. Meant for
+  // listeners owned by short-lived components that never unsubscribe.
+  WEAK,
+  // Like WEAK, but kept around until the heap runs low.
+  SOFT
+}
+
+// Says which files a listener cares about. Filters are built from a few
+// cheap, declarative checks rather than arbitrary code, so EventManager
+// can index them: listeners that only want certain extensions are looked
+// up by the file's extension and never even considered for other files.
+// Filters are immutable; each with...() method returns a new one.
+final class EventFilter {
+  static final EventFilter ANY = new EventFilter(null, null, 0, Long.MAX_VALUE);
+
+  final Set<String> extensions; // lower case, without the dot; null means any
+  final String pathPrefix;      // null means any
+  final long minSize;
+  final long maxSize;
+
+  private EventFilter(Set<String> extensions, String pathPrefix, long minSize, long maxSize) {
+    this.extensions = extensions;
+    this.pathPrefix = pathPrefix;
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+  }
+
+  // Only files with one of these extensions, e.g. extension("txt", "md").
+  static EventFilter extension(String... extensions) {
+    return ANY.withExtension(extensions);
+  }
+
+  EventFilter withExtension(String... extensions) {
+    Set<String> normalized = new HashSet<>();
+    for (String extension : extensions) {
+      normalized.add(extension.toLowerCase());
+    }
+    return new EventFilter(normalized, pathPrefix, minSize, maxSize);
+  }
+
+  EventFilter withPathPrefix(String pathPrefix) {
+    return new EventFilter(extensions, pathPrefix, minSize, maxSize);
+  }
+
+  EventFilter withSizeBetween(long minSize, long maxSize) {
+    return new EventFilter(extensions, pathPrefix, minSize, maxSize);
+  }
+
+  boolean matches(File file) {
+    return (extensions == null || extensions.contains(extensionOf(file))) && matchesRest(file);
+  }
+
+  // Everything but the extension, which the index has already checked.
+  boolean matchesRest(File file) {
+    if (pathPrefix != null && !file.getPath().startsWith(pathPrefix)) {
+      return false;
+    }
+    if (minSize > 0 || maxSize < Long.MAX_VALUE) {
+      long size = file.length();
+      return size >= minSize && size <= maxSize;
+    }
+    return true;
+  }
+
+  boolean checksRest() {
+    return pathPrefix != null || minSize > 0 || maxSize < Long.MAX_VALUE;
+  }
+
+  // Lower-case extension without the dot, or "" if there is none.
+  static String extensionOf(File file) {
+    String name = file.getName();
+    int dot = name.lastIndexOf('.');
+    return dot < 0 ? "" : name.substring(dot + 1).toLowerCase();
+  }
+}
+
+// Handle for one listener subscribed to one event type. cancel() it to
+// unsubscribe.
+final class Subscription {
+  private static final AtomicLong subscribed = new AtomicLong();
+
+  final EventType type;
+  final int priority;
+  // Orders subscriptions of equal priority.
+  final long sequence = subscribed.incrementAndGet();
+  final EventFilter filter;
+  private final EventListener strong;
+  private final Reference<EventListener> reference;
+  private final boolean expires;
+  private final long expiresAt; // System.nanoTime() deadline
+  private volatile boolean cancelled;
+  // Set once the subscription is out of its index, before its metrics
+  // are unregistered.
+  private volatile boolean removed;
+  private volatile MeteredListener metered;
+
+  Subscription(EventType type, EventListener listener, int priority, EventFilter filter, Retention retention, Duration ttl) {
+    this.type = type;
+    this.priority = priority;
+    this.filter = filter;
+    this.strong = retention == Retention.STRONG ? listener : null;
+    this.reference = retention == Retention.WEAK ? new WeakReference<>(listener)
+      : retention == Retention.SOFT ? new SoftReference<>(listener) : null;
+    this.expires = ttl != null;
+    this.expiresAt = ttl != null ? System.nanoTime() + ttl.toNanos() : 0;
+  }
+
+  public void cancel() {
+    cancelled = true;
+    type.manager.unsubscribe(this);
+  }
+
+  // The listener to notify, or null once the subscription is cancelled,
+  // expired, or its listener was garbage collected.
+  EventListener listener() {
+    if (cancelled || (expires && System.nanoTime() - expiresAt > 0)) {
+      return null;
+    }
+    return peek();
+  }
+
+  void markRemoved() {
+    removed = true;
+  }
+
+  // The listener if it is still in memory, stale or not.
+  EventListener peek() {
+    return strong != null ? strong : reference.get();
+  }
+
+  // The stand-in that records this subscription's metrics.
+  EventListener metered(EventMetrics metrics, EventListener listener) {
+    MeteredListener result = metered;
+    if (result == null) {
+      synchronized (this) {
+        if (metered == null) {
+          ListenerMetrics registered = metrics.register(this, listener);
+          // remove() may have unregistered before the first delivery got
+          // to register; then nobody else would undo it.
+          if (removed) {
+            metrics.unregister(this);
+          }
+          metered = new MeteredListener(this, registered);
+        }
+        result = metered;
+      }
+    }
+    return result;
+  }
+}
+
+// The subscriptions of one event type. Never modified once built; every
+// subscribe/unsubscribe swaps in a new one.
+//
+// all is kept sorted by priority, highest first, and in subscription
+// order among equal priorities. The lookup structures notify() uses are
+// compiled from it on first use: subscriptions whose filter names
+// extensions are grouped by extension, all others go to a residual
+// list. Both keep the priority order, so merging the two candidate lists
+// for a file yields exactly the interested listeners, in order.
+final class ListenerIndex {
+  static final ListenerIndex EMPTY = new ListenerIndex(new Subscription[0]);
+
+  final Subscription[] all;
+  private Map<String, Subscription[]> byExtension;
+  private Subscription[] residual;
+  private boolean filtered;
+  private volatile boolean compiled;
+
+  ListenerIndex(Subscription[] all) {
+    this.all = all;
+  }
+
+  Map<String, Subscription[]> byExtension() {
+    compile();
+    return byExtension;
+  }
+
+  Subscription[] residual() {
+    compile();
+    return residual;
+  }
+
+  // Whether any subscription has a filter at all.
+  boolean filtered() {
+    compile();
+    return filtered;
+  }
+
+  ListenerIndex with(Subscription subscription) {
+    int at = all.length;
+    while (at > 0 && all[at - 1].priority < subscription.priority) {
+      at--;
+    }
+    Subscription[] updated = new Subscription[all.length + 1];
+    System.arraycopy(all, 0, updated, 0, at);
+    updated[at] = subscription;
+    System.arraycopy(all, at, updated, at + 1, all.length - at);
+    return new ListenerIndex(updated);
+  }
+
+  // Building twice when two threads race here is harmless: both build the
+  // same thing from the same immutable array.
+  private void compile() {
+    if (compiled) {
+      return;
+    }
+    Map<String, List<Subscription>> groups = new HashMap<>();
+    List<Subscription> rest = new ArrayList<>();
+    boolean anyFilter = false;
+    for (Subscription subscription : all) {
+      EventFilter filter = subscription.filter;
+      anyFilter |= filter != EventFilter.ANY;
+      if (filter.extensions == null) {
+        rest.add(subscription);
+        continue;
+      }
+      for (String extension : filter.extensions) {
+        groups.computeIfAbsent(extension, e -> new ArrayList<>()).add(subscription);
+      }
+    }
+    Map<String, Subscription[]> index = new HashMap<>();
+    for (Map.Entry<String, List<Subscription>> group : groups.entrySet()) {
+      index.put(group.getKey(), group.getValue().toArray(new Subscription[0]));
+    }
+    byExtension = index;
+    residual = rest.toArray(new Subscription[0]);
+    filtered = anyFilter;
+    compiled = true;
+  }
+}
 
 // The base publisher class includes subscription management
 // code and notification methods.
+//
+// Event types get dense ids 0, 1, 2, ... in the order they are passed to
+// the constructor, and the listeners live in an array indexed by id.
+// The String methods are conveniences that look the type up by name.
+//
+// Each event type keeps its subscriptions in an immutable ListenerIndex.
+// notify() reads the current index and loops over it: no locks, no
+// iterator, and subscribers coming and going on other threads can't break
+// it. subscribe() and unsubscribe() build a new index and swap it in with
+// a compare-and-set, retrying if another thread swapped first.
+//
+// Listeners can subscribe with a priority and an EventFilter. Higher
+// priorities are notified first, and a listener whose filter doesn't
+// match the file isn't called at all. Thanks to the index, the cost of a
+// notify() grows with the number of interested listeners, not with the
+// number of subscribed ones.
+//
+// Subscriptions can be weak, soft or time-limited (see Retention and
+// subscribe()). When notify() comes across one that has gone stale, it
+// skips it and then prunes every stale subscription of that type, so
+// forgotten listeners neither leak nor slow notify() down. subscribe()
+// sweeps now and then too, for stale subscriptions notify() never gets
+// to because their filter doesn't match.
+//
+// How each listener gets called is up to the Dispatcher: right away on
+// the caller's thread (the default), or later on an executor.
+//
+// Event types can opt into batching (see batch()): their events are then
+// buffered and handed to the listeners in bursts.
+//
+// The manager can also write every event to an EventJournal before
+// delivering it (see journal()), so that durable listeners can catch up
+// on what they missed after a crash or restart.
+//
+// With enableMetrics(), every subscription keeps call counts and a
+// latency histogram, to find out which listener slows notify() down.
 class EventManager {
-  Map<String, List<EventListener>> listeners = new HashMap<>();
+  private static final Subscription[] NONE = new Subscription[0];
+  // Both filled in once by the constructor and only read afterwards.
+  private final Map<String, EventType> types = new HashMap<>();
+  private final AtomicReferenceArray<ListenerIndex> listeners;
+  // null for event types that are delivered one by one.
+  private final AtomicReferenceArray<EventBatch> batches;
+  private final Dispatcher dispatcher;
+  private ScheduledExecutorService flusher;
+  private volatile EventJournal journal;
+  private volatile EventMetrics metrics;
 
   public EventManager(String... operations) {
+    this(new DirectDispatcher(), operations);
+  }
+
+  public EventManager(Dispatcher dispatcher, String... operations) {
+    this.dispatcher = dispatcher;
+    // A name given twice is one type, so the arrays are sized by the
+    // distinct names.
     for (String operation : operations) {
-      this.listeners.put(operation, new ArrayList<>());
+      if (!types.containsKey(operation)) {
+        types.put(operation, new EventType(types.size(), operation, this));
+      }
+    }
+    this.listeners = new AtomicReferenceArray<>(types.size());
+    this.batches = new AtomicReferenceArray<>(types.size());
+    for (EventType type : types.values()) {
+      listeners.set(type.id, ListenerIndex.EMPTY);
+    }
+  }
+
+  // Resolves an event type name to its token.
+  public EventType type(String eventType) {
+    EventType type = types.get(eventType);
+    if (type == null) {
+      throw new IllegalArgumentException("Unknown event type: " + eventType);
+    }
+    return type;
+  }
+
+  public Subscription subscribe(String eventType, EventListener listener) {
+    return subscribe(type(eventType), listener);
+  }
+
+  public Subscription subscribe(EventType type, EventListener listener) {
+    return subscribe(type, listener, 0, EventFilter.ANY, Retention.STRONG, null);
+  }
+
+  public Subscription subscribe(String eventType, EventListener listener, int priority, EventFilter filter) {
+    return subscribe(type(eventType), listener, priority, filter, Retention.STRONG, null);
+  }
+
+  public Subscription subscribe(String eventType, EventListener listener, Retention retention, Duration ttl) {
+    return subscribe(type(eventType), listener, 0, EventFilter.ANY, retention, ttl);
+  }
+
+  public Subscription subscribe(EventType type, EventListener listener, Retention retention, Duration ttl) {
+    return subscribe(type, listener, 0, EventFilter.ANY, retention, ttl);
+  }
 
+  // ttl may be null for a subscription that doesn't expire.
+  public Subscription subscribe(EventType type, EventListener listener, int priority, EventFilter filter,
+      Retention retention, Duration ttl) {
+    int id = checked(type).id;
+    Subscription subscription = new Subscription(type, listener, priority, filter, retention, ttl);
+    ListenerIndex current;
+    ListenerIndex updated;
+    do {
+      current = listeners.get(id);
+      updated = current.with(subscription);
+    } while (!listeners.compareAndSet(id, current, updated));
+    // notify() only notices stale subscriptions it delivers to, so ones
+    // whose filter never matches would pile up. Sweep whenever the count
+    // reaches a power of two, which keeps the cost per subscribe constant.
+    int count = updated.all.length;
+    if (count >= 64 && (count & (count - 1)) == 0) {
+      remove(id, s -> s.listener() == null);
     }
+    return subscription;
   }
 
-  public void subscribe(String eventType, EventListener listener) {
-    List<EventListener> users = listeners.get(eventType);
-    users.remove(listener);
+  public void unsubscribe(String eventType, EventListener listener) {
+    unsubscribe(type(eventType), listener);
+  }
+
+  public void unsubscribe(EventType type, EventListener listener) {
+    remove(checked(type).id, subscription -> subscription.peek() == listener);
+  }
+
+  public void unsubscribe(Subscription subscription) {
+    remove(checked(subscription.type).id, s -> s == subscription);
+  }
+
+  // Number of subscriptions currently held for this type, stale ones
+  // that haven't been pruned yet included.
+  public int subscriberCount(EventType type) {
+    return listeners.get(checked(type).id).all.length;
   }
 
   public void notify(String eventType, File file) {
-    List<EventListener> users = listeners.get(eventType);
-    for (EventListener listener : users) {
+    notify(type(eventType), file);
+  }
+
+  public void notify(EventType type, File file) {
+    EventJournal journal = this.journal;
+    if (journal == null) {
+      deliver(type, file);
+      return;
+    }
+    JournaledFile event;
+    try {
+      event = journal.append(checked(type).name, file.getPath());
+    } catch (IOException ex) {
+      throw new UncheckedIOException("Cannot journal " + type + " event for " + file, ex);
+    }
+    try {
+      deliver(type, event);
+    } finally {
+      journal.settle(event);
+    }
+  }
+
+  private void deliver(EventType type, File file) {
+    EventBatch batch = batches.get(checked(type).id);
+    if (batch != null) {
+      if (batch.add(file)) {
+        flush(type, batch, EventBatch.ANY_WINDOW);
+      }
+      return;
+    }
+    ListenerIndex index = listeners.get(type.id);
+    boolean stale = false;
+    if (!index.filtered()) {
+      // Nobody filters: everyone is interested, already in order.
+      Subscription[] users = index.all;
+      for (int i = 0; i < users.length; i++) {
+        stale |= !deliver(users[i], type, file);
+      }
+    } else {
+      Map<String, Subscription[]> byExtension = index.byExtension();
+      Subscription[] matched = byExtension.isEmpty() ? NONE
+        : byExtension.getOrDefault(EventFilter.extensionOf(file), NONE);
+      Subscription[] residual = index.residual();
+      // Merge the two priority-ordered lists.
+      int i = 0;
+      int j = 0;
+      while (i < matched.length || j < residual.length) {
+        Subscription next = j == residual.length || (i < matched.length && comesFirst(matched[i], residual[j]))
+          ? matched[i++] : residual[j++];
+        if (!next.filter.checksRest() || next.filter.matchesRest(file)) {
+          stale |= !deliver(next, type, file);
+        }
+      }
+    }
+    if (stale) {
+      remove(type.id, subscription -> subscription.listener() == null);
+    }
+  }
+
+  // The order of ListenerIndex.all: by priority, then subscription order.
+  private static boolean comesFirst(Subscription a, Subscription b) {
+    return a.priority > b.priority || (a.priority == b.priority && a.sequence < b.sequence);
+  }
+
+  // Returns false if the subscription has gone stale.
+  private boolean deliver(Subscription subscription, EventType type, File file) {
+    EventListener listener = subscription.listener();
+    if (listener == null) {
+      return false;
+    }
+    if (file instanceof JournaledFile && listener instanceof DurableListener) {
+      ((DurableListener) listener).expect((JournaledFile) file);
+    }
+    EventMetrics metrics = this.metrics;
+    dispatcher.dispatch(metrics == null ? listener : subscription.metered(metrics, listener), type.name, file);
+    return true;
+  }
+
+  // Starts recording metrics for every subscription, and also exposes
+  // them as MBeans under the given JMX domain unless it is null. Returns
+  // the registry to take snapshots from.
+  public synchronized EventMetrics enableMetrics(String jmxDomain) {
+    if (metrics == null) {
+      metrics = new EventMetrics(jmxDomain);
+    }
+    return metrics;
+  }
+
+  // From now on, writes every event to the journal before delivering it.
+  // A journaled event is delivered once it is on disk, one by one, so this
+  // doesn't mix with batch().
+  public synchronized void journal(EventJournal journal) {
+    for (int id = 0; id < batches.length(); id++) {
+      if (batches.get(id) != null) {
+        throw new IllegalStateException("Journaling can't be combined with batching");
+      }
+    }
+    this.journal = journal;
+  }
+
+  // Subscribes a listener that must not miss events, identified by a
+  // name that stays the same across restarts. It first gets every event
+  // of this type journaled since its last checkpoint, then live events.
+  public Subscription subscribeDurable(String eventType, String listenerId, EventListener listener) throws IOException {
+    EventType type = type(eventType);
+    EventJournal journal = this.journal;
+    if (journal == null) {
+      throw new IllegalStateException("Durable subscriptions need a journal");
+    }
+    EventJournal.Cursor cursor = journal.cursor(listenerId);
+    DurableListener durable = new DurableListener(listener, cursor, journal);
+    Subscription[] subscription = new Subscription[1];
+    journal.replay(cursor.offset(), (name, path, end) -> {
+      if (name.equals(type.name)) {
+        listener.update(name, new File(path));
+      }
+      cursor.advance(end);
+      durable.replayed = end;
+    }, () -> subscription[0] = subscribe(type, durable));
+    return subscription[0];
+  }
+
+  // From now on, buffers the events of this type and delivers them once
+  // maxSize of them are waiting or maxDelay after the first one came in,
+  // whichever happens first. With coalesce, repeated events for the same
+  // file only count once and are delivered in the place of the latest one.
+  // BatchEventListeners get every burst in a single call. Calling it again
+  // changes the settings; whatever is buffered is delivered first.
+  public void batch(String eventType, int maxSize, long maxDelay, TimeUnit unit, boolean coalesce) {
+    EventType type = type(eventType);
+    EventBatch[] batch = new EventBatch[1];
+    EventBatch replaced;
+    // The batch goes in under the same lock as the journal check, so that
+    // journal() can't slip in between the two.
+    synchronized (this) {
+      if (journal != null) {
+        throw new IllegalStateException("Batching can't be combined with journaling");
+      }
+      if (flusher == null) {
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+          Thread thread = new Thread(runnable, "event-batch-flusher");
+          thread.setDaemon(true);
+          return thread;
+        });
+      }
+      batch[0] = new EventBatch(maxSize, coalesce,
+        window -> flusher.schedule(() -> flush(type, batch[0], window), maxDelay, unit));
+      replaced = batches.getAndSet(type.id, batch[0]);
+    }
+    flush(type, replaced, EventBatch.ANY_WINDOW);
+  }
+
+  // Goes back to delivering events of this type one by one, after
+  // delivering whatever is buffered.
+  public void unbatch(String eventType) {
+    EventType type = type(eventType);
+    EventBatch replaced;
+    synchronized (this) {
+      replaced = batches.getAndSet(type.id, null);
+    }
+    flush(type, replaced, EventBatch.ANY_WINDOW);
+  }
+
+  // Delivers everything buffered for this type right away. Each listener
+  // gets the files its filter matches, in one burst.
+  public void flush(EventType type) {
+    flush(type, batches.get(checked(type).id), EventBatch.ANY_WINDOW);
+  }
+
+  // Flushes of one batch run one at a time, from draining to the last
+  // delivery, so that listeners get the bursts one after another and in
+  // order, whether the timer or a full batch set them off. The timer only
+  // flushes the window it was set for: if the batch filled up and was
+  // flushed in the meantime, it leaves the next window alone.
+  private void flush(EventType type, EventBatch batch, long window) {
+    if (batch == null) {
+      return;
+    }
+    synchronized (batch.flushing) {
+      List<File> files = batch.drain(window);
+      if (!files.isEmpty()) {
+        deliverAll(type, files);
+      }
+    }
+  }
+
+  private void deliverAll(EventType type, List<File> files) {
+    Subscription[] users = listeners.get(type.id).all;
+    boolean stale = false;
+    for (int i = 0; i < users.length; i++) {
+      EventListener listener = users[i].listener();
+      if (listener == null) {
+        stale = true;
+        continue;
+      }
+      List<File> wanted = files;
+      if (users[i].filter != EventFilter.ANY) {
+        wanted = new ArrayList<>();
+        for (File file : files) {
+          if (users[i].filter.matches(file)) {
+            wanted.add(file);
+          }
+        }
+      }
+      if (!wanted.isEmpty()) {
+        EventMetrics metrics = this.metrics;
+        dispatcher.dispatchAll(metrics == null ? listener : users[i].metered(metrics, listener), type.name, wanted);
+      }
+    }
+    if (stale) {
+      remove(type.id, subscription -> subscription.listener() == null);
+    }
+  }
+
+  // Delivers everything buffered for every type right away.
+  public void flush() {
+    for (EventType type : types.values()) {
+      flush(type);
+    }
+  }
+
+  // Waits until every event notified so far has reached its listeners.
+  // Returns false if that didn't happen within the timeout.
+  public boolean awaitDelivery(long timeout, TimeUnit unit) throws InterruptedException {
+    return dispatcher.awaitDelivery(timeout, unit);
+  }
+
+  // Ids are only meaningful to the manager that handed out the token.
+  private EventType checked(EventType type) {
+    if (type.manager != this) {
+      throw new IllegalArgumentException("Event type " + type + " belongs to another EventManager");
+    }
+    return type;
+  }
+
+  // Swaps in a copy of the index without the matching subscriptions.
+  private void remove(int id, Predicate<Subscription> which) {
+    ListenerIndex current;
+    ListenerIndex updated;
+    do {
+      current = listeners.get(id);
+      Subscription[] kept = new Subscription[current.all.length];
+      int count = 0;
+      for (Subscription subscription : current.all) {
+        if (!which.test(subscription)) {
+          kept[count++] = subscription;
+        }
+      }
+      if (count == current.all.length) {
+        return;
+      }
+      updated = count == 0 ? ListenerIndex.EMPTY : new ListenerIndex(Arrays.copyOf(kept, count));
+    } while (!listeners.compareAndSet(id, current, updated));
+    for (Subscription subscription : current.all) {
+      if (!which.test(subscription)) {
+        continue;
+      }
+      // Marked before metrics is read: a delivery that registers once
+      // metrics are on then sees the mark and unregisters itself.
+      subscription.markRemoved();
+      EventMetrics metrics = this.metrics;
+      if (metrics != null) {
+        metrics.unregister(subscription);
+      }
+      EventListener listener = subscription.peek();
+      if (listener != null && !isSubscribed(listener)) {
+        dispatcher.forget(listener);
+      }
+    }
+  }
+
+  // Whether the listener still has a subscription to any event type.
+  private boolean isSubscribed(EventListener listener) {
+    for (int id = 0; id < listeners.length(); id++) {
+      for (Subscription subscription : listeners.get(id).all) {
+        if (subscription.peek() == listener) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+}
+
+// Events of one type waiting to be delivered together.
+//
+// The events between two drains make up a window. The first event of a
+// window schedules a flush of that window, by number.
+class EventBatch {
+  static final long ANY_WINDOW = -1;
+
+  // Held by whoever is flushing the batch.
+  final Object flushing = new Object();
+  private final int maxSize;
+  private final boolean coalesce;
+  private final LongConsumer scheduleFlush;
+  private Map<File, File> files = new LinkedHashMap<>();
+  private List<File> pending = new ArrayList<>();
+  private long window;
+
+  EventBatch(int maxSize, boolean coalesce, LongConsumer scheduleFlush) {
+    this.maxSize = maxSize;
+    this.coalesce = coalesce;
+    this.scheduleFlush = scheduleFlush;
+  }
+
+  // Returns true once the batch is full and should be flushed now.
+  synchronized boolean add(File file) {
+    int size;
+    if (coalesce) {
+      // Re-inserting moves the file to the end, where its latest event is.
+      files.remove(file);
+      files.put(file, file);
+      size = files.size();
+    } else {
+      pending.add(file);
+      size = pending.size();
+    }
+    if (size == 1) {
+      scheduleFlush.accept(window);
+    }
+    return size >= maxSize;
+  }
+
+  // Takes everything buffered so far, in notify order, unless window is
+  // not ANY_WINDOW and no longer the current one.
+  synchronized List<File> drain(long window) {
+    if (window != ANY_WINDOW && window != this.window) {
+      return List.of();
+    }
+    this.window++;
+    List<File> drained;
+    if (coalesce) {
+      drained = new ArrayList<>(files.values());
+      files = new LinkedHashMap<>();
+    } else {
+      drained = pending;
+      pending = new ArrayList<>();
+    }
+    return drained;
+  }
+}
+
+// Write-ahead journal of events. Every notify() appends its event here and
+// only delivers it once it is on disk, so a crash can't lose it.
+//
+// Records are appended to a single file, each as
+//   int length | int CRC32 of the body | body
+// where the body is
+//   short type length | type (UTF-8) | path (UTF-8).
+// On open, the file is scanned and cut after the last intact record, so a
+// record torn by a crash is dropped rather than misread.
+//
+// Appends use group commit: while one thread writes and forces a batch,
+// the records of all other threads pile up in a second buffer and go out
+// together in the next write and force. The more threads notify at once,
+// the more events share each fsync.
+//
+// Durable listeners (see EventManager.subscribeDurable()) each have a
+// Cursor: an offset before which they have processed every record.
+// checkpoint() saves every cursor next to the journal, and after a
+// restart a listener replays whatever came after its saved cursor.
+// Delivery is at least once: events processed after the last checkpoint
+// are delivered again.
+final class EventJournal implements Closeable {
+  private final FileChannel channel;
+  private final Path offsetsFile;
+  private final boolean fsync;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition committed = lock.newCondition();
+  private final Map<String, Cursor> cursors = new ConcurrentHashMap<>();
+  // Records appended whose notify() hasn't handed them to every listener
+  // yet, end -> start. No cursor moves past them, since a durable
+  // listener may still be about to get one.
+  private final ConcurrentSkipListMap<Long, Long> unsettled = new ConcurrentSkipListMap<>();
+  private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+  private ByteBuffer writing = ByteBuffer.allocate(64 * 1024);
+  private long appended; // end of everything appended
+  private long durable;  // end of everything written (and forced)
+  private boolean committing;
+  private IOException failure;
+  private long forces;
+
+  // Receives the records of a replay.
+  interface RecordVisitor {
+    void visit(String eventType, String path, long end);
+  }
+
+  // How far a durable listener has got.
+  static final class Cursor {
+    final String listenerId;
+    private volatile long offset;
+
+    Cursor(String listenerId, long offset) {
+      this.listenerId = listenerId;
+      this.offset = offset;
+    }
+
+    long offset() {
+      return offset;
+    }
+
+    synchronized void advance(long end) {
+      if (end > offset) {
+        offset = end;
+      }
+    }
+  }
+
+  // With fsync off, records are written but not forced: they survive the
+  // process dying, but not the machine.
+  EventJournal(Path file, boolean fsync) throws IOException {
+    this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.offsetsFile = file.resolveSibling(file.getFileName() + ".offsets");
+    this.fsync = fsync;
+    long end = scan(0, channel.size(), (eventType, path, recordEnd) -> {});
+    channel.truncate(end);
+    channel.position(end);
+    this.appended = end;
+    this.durable = end;
+    if (Files.exists(offsetsFile)) {
+      Properties saved = new Properties();
+      try (Reader reader = Files.newBufferedReader(offsetsFile)) {
+        saved.load(reader);
+      }
+      for (String listenerId : saved.stringPropertyNames()) {
+        long offset = Math.min(end, Long.parseLong(saved.getProperty(listenerId)));
+        cursors.put(listenerId, new Cursor(listenerId, offset));
+      }
+    }
+  }
+
+  // Appends a record and returns it, with its offsets, once it is
+  // durable. Pass it to settle() once it has been delivered.
+  JournaledFile append(String eventType, String path) throws IOException {
+    byte[] type = eventType.getBytes(StandardCharsets.UTF_8);
+    byte[] name = path.getBytes(StandardCharsets.UTF_8);
+    int length = 2 + type.length + name.length;
+    CRC32 crc = new CRC32();
+    crc.update(type.length >>> 8);
+    crc.update(type.length);
+    crc.update(type);
+    crc.update(name);
+    lock.lock();
+    try {
+      if (pending.remaining() < 8 + length) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + 8 + length));
+        pending.flip();
+        pending = bigger.put(pending);
+      }
+      pending.putInt(length).putInt((int) crc.getValue()).putShort((short) type.length).put(type).put(name);
+      long start = appended;
+      appended += 8 + length;
+      long end = appended;
+      unsettled.put(end, start);
+      try {
+        commitUpTo(end);
+      } catch (IOException ex) {
+        unsettled.remove(end);
+        throw ex;
+      }
+      return new JournaledFile(path, start, end);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Called with the lock held. The first thread to get here writes
+  // everything appended so far; the others wait for it, and one of them
+  // takes over if their records missed that batch.
+  private void commitUpTo(long end) throws IOException {
+    while (durable < end) {
+      if (failure != null) {
+        throw failure;
+      }
+      if (committing) {
+        committed.awaitUninterruptibly();
+        continue;
+      }
+      committing = true;
+      ByteBuffer batch = pending;
+      pending = writing;
+      writing = batch;
+      long target = appended;
+      lock.unlock();
+      IOException error = null;
+      try {
+        batch.flip();
+        while (batch.hasRemaining()) {
+          channel.write(batch);
+        }
+        if (fsync) {
+          channel.force(false);
+        }
+      } catch (IOException ex) {
+        error = ex;
+      } finally {
+        lock.lock();
+        batch.clear();
+        committing = false;
+        if (error == null) {
+          durable = target;
+          forces++;
+        } else {
+          failure = error;
+        }
+        committed.signalAll();
+      }
+    }
+  }
+
+  void settle(JournaledFile record) {
+    unsettled.remove(record.end);
+  }
+
+  // The start of the oldest unsettled record other than the one ending at
+  // except, or Long.MAX_VALUE if there is none.
+  long oldestUnsettled(long except) {
+    for (Map.Entry<Long, Long> record : unsettled.entrySet()) {
+      if (record.getKey() != except) {
+        return record.getValue();
+      }
+    }
+    return Long.MAX_VALUE;
+  }
+
+  // The cursor of a durable listener, starting at 0 for a new one.
+  Cursor cursor(String listenerId) {
+    return cursors.computeIfAbsent(listenerId, id -> new Cursor(id, 0));
+  }
+
+  // Replays every record from the given offset to the end, then runs
+  // andThen. No record can be appended in the meantime, so anything
+  // appended afterwards is sure to come after andThen.
+  void replay(long from, RecordVisitor visitor, Runnable andThen) throws IOException {
+    lock.lock();
+    try {
+      commitUpTo(appended);
+      scan(from, durable, visitor);
+      andThen.run();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Saves every cursor, atomically replacing the previous checkpoint.
+  void checkpoint() throws IOException {
+    Properties saved = new Properties();
+    for (Cursor cursor : cursors.values()) {
+      saved.setProperty(cursor.listenerId, Long.toString(cursor.offset()));
+    }
+    Path temp = offsetsFile.resolveSibling(offsetsFile.getFileName() + ".tmp");
+    try (Writer writer = Files.newBufferedWriter(temp)) {
+      saved.store(writer, null);
+    }
+    if (fsync) {
+      // Otherwise the rename can reach the disk before the data does.
+      try (FileChannel written = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        written.force(true);
+      }
+    }
+    Files.move(temp, offsetsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // Number of writes (and, with fsync, forces) so far.
+  long forces() {
+    lock.lock();
+    try {
+      return forces;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  // Visits the intact records between from and to, and returns the end of
+  // the last one.
+  private long scan(long from, long to, RecordVisitor visitor) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    long position = from;
+    while (position < to) {
+      buffer.clear();
+      buffer.limit((int) Math.min(buffer.capacity(), to - position));
+      while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+        // keep reading until the buffer is full
+      }
+      if (buffer.hasRemaining()) {
+        // The file is shorter than it was said to be.
+        to = position + buffer.position();
+      }
+      buffer.flip();
+      int start = 0;
+      int needed = 0;
+      while (true) {
+        if (buffer.limit() - start < 8) {
+          if (position + start + 8 > to) {
+            return position + start; // torn header
+          }
+          break; // continues in the next read
+        }
+        int length = buffer.getInt(start);
+        if (length < 2 || position + start + 8 + length > to) {
+          return position + start; // torn or garbage
+        }
+        if (buffer.limit() - start < 8 + length) {
+          needed = 8 + length;
+          break; // continues in the next read
+        }
+        byte[] body = new byte[length];
+        buffer.get(start + 8, body);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if ((int) crc.getValue() != buffer.getInt(start + 4)) {
+          return position + start;
+        }
+        int typeLength = ((body[0] & 0xFF) << 8) | (body[1] & 0xFF);
+        String eventType = new String(body, 2, typeLength, StandardCharsets.UTF_8);
+        String path = new String(body, 2 + typeLength, length - 2 - typeLength, StandardCharsets.UTF_8);
+        start += 8 + length;
+        visitor.visit(eventType, path, position + start);
+      }
+      if (start == 0) {
+        // A single record bigger than the buffer.
+        buffer = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, needed));
+        continue;
+      }
+      position += start;
+    }
+    return position;
+  }
+}
+
+// A file event that was written to an EventJournal, together with where
+// its record sits in the journal. notify() hands it to the listeners in
+// place of the plain file, so the offsets travel with the event whatever
+// the dispatcher does with it.
+final class JournaledFile extends File {
+  private static final long serialVersionUID = 1L;
+
+  final long start;
+  final long end;
+
+  JournaledFile(String path, long start, long end) {
+    super(path);
+    this.start = start;
+    this.end = end;
+  }
+}
+
+// Wraps a listener subscribed through EventManager.subscribeDurable() and
+// moves its cursor forward as events are processed.
+//
+// Events can be processed out of journal order (two threads notifying at
+// once, say), so the cursor only moves up to the oldest event that is
+// still on its way: one this listener has been handed but not processed
+// yet, or one whose notify() hasn't got to this listener yet.
+final class DurableListener implements EventListener {
+  final EventListener listener;
+  final EventJournal.Cursor cursor;
+  private final EventJournal journal;
+  // Handed to the dispatcher and not processed yet, end -> start.
+  private final ConcurrentSkipListMap<Long, Long> pending = new ConcurrentSkipListMap<>();
+  // Events up to here were replayed before the listener subscribed.
+  volatile long replayed;
+
+  DurableListener(EventListener listener, EventJournal.Cursor cursor, EventJournal journal) {
+    this.listener = listener;
+    this.cursor = cursor;
+    this.journal = journal;
+    this.replayed = cursor.offset();
+  }
+
+  // Called by notify() before it dispatches the event.
+  void expect(JournaledFile event) {
+    pending.put(event.end, event.start);
+  }
+
+  @Override
+  public void update(String eventType, File file) {
+    if (!(file instanceof JournaledFile)) {
+      listener.update(eventType, file);
+      return;
+    }
+    JournaledFile event = (JournaledFile) file;
+    // Up to replayed, it was already seen during replay. If the listener
+    // throws, the event stays pending and the cursor stops before it.
+    if (event.end > replayed) {
+      listener.update(eventType, file);
+    }
+    pending.remove(event.end);
+    Map.Entry<Long, Long> oldest = pending.firstEntry();
+    long safe = Math.min(journal.oldestUnsettled(event.end), oldest == null ? Long.MAX_VALUE : oldest.getValue());
+    cursor.advance(Math.min(event.end, safe));
+  }
+}
+
+// Invocation count, error count and a latency histogram for one
+// subscription, i.e. one listener on one event type.
+//
+// Counters are LongAdders, so threads delivering at the same time don't
+// fight over one cache line. The histogram works like HdrHistogram with
+// fixed memory: every power of two is split into 8 equal buckets, which
+// keeps any recorded latency within 12.5% of its true value, from 1 ns up
+// to centuries, in 488 counters. It is striped the same way: each thread
+// counts in one of a few copies, picked by thread id, and a snapshot adds
+// them up.
+final class ListenerMetrics {
+  private static final int SUB_BUCKETS = 8;
+  private static final int BUCKETS = (63 - 2) * SUB_BUCKETS;
+  // A power of two, at most 8: each stripe is 4 KB.
+  private static final int STRIPES =
+    Math.min(8, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+  final long id;
+  final String listener;
+  final String eventType;
+  private final LongAdder invocations = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder totalNanos = new LongAdder();
+  private final AtomicLongArray[] histogram = new AtomicLongArray[STRIPES];
+
+  ListenerMetrics(long id, String listener, String eventType) {
+    this.id = id;
+    this.listener = listener;
+    this.eventType = eventType;
+    for (int i = 0; i < STRIPES; i++) {
+      histogram[i] = new AtomicLongArray(BUCKETS);
+    }
+  }
+
+  void record(long nanos, boolean failed) {
+    invocations.increment();
+    totalNanos.add(nanos);
+    histogram[(int) Thread.currentThread().getId() & (STRIPES - 1)].incrementAndGet(bucket(nanos));
+    if (failed) {
+      errors.increment();
+    }
+  }
+
+  // Counts are read one after another while recording goes on, so a
+  // snapshot is close to, but not exactly, a single point in time.
+  Snapshot snapshot() {
+    long[] counts = new long[BUCKETS];
+    long total = 0;
+    for (AtomicLongArray stripe : histogram) {
+      for (int i = 0; i < BUCKETS; i++) {
+        counts[i] += stripe.get(i);
+      }
+    }
+    for (int i = 0; i < BUCKETS; i++) {
+      total += counts[i];
+    }
+    long count = invocations.sum();
+    return new Snapshot(listener, eventType, count, errors.sum(),
+      count == 0 ? 0 : totalNanos.sum() / count,
+      percentile(counts, total, 0.50), percentile(counts, total, 0.99), percentile(counts, total, 1.0));
+  }
+
+  static int bucket(long nanos) {
+    if (nanos < SUB_BUCKETS) {
+      return (int) Math.max(0, nanos);
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+    int sub = (int) (nanos >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+    return (exponent - 2) * SUB_BUCKETS + sub;
+  }
+
+  // The highest value that falls into the bucket.
+  static long bucketTop(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + 2;
+    long width = 1L << (exponent - 3);
+    return (SUB_BUCKETS + bucket % SUB_BUCKETS) * width + width - 1;
+  }
+
+  private static long percentile(long[] counts, long total, double fraction) {
+    long rank = (long) Math.ceil(total * fraction);
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank && seen > 0) {
+        return bucketTop(i);
+      }
+    }
+    return 0;
+  }
+
+  static final class Snapshot {
+    final String listener;
+    final String eventType;
+    final long invocations;
+    final long errors;
+    final long meanNanos;
+    final long p50Nanos;
+    final long p99Nanos;
+    final long maxNanos;
+
+    Snapshot(String listener, String eventType, long invocations, long errors,
+        long meanNanos, long p50Nanos, long p99Nanos, long maxNanos) {
+      this.listener = listener;
+      this.eventType = eventType;
+      this.invocations = invocations;
+      this.errors = errors;
+      this.meanNanos = meanNanos;
+      this.p50Nanos = p50Nanos;
+      this.p99Nanos = p99Nanos;
+      this.maxNanos = maxNanos;
+    }
+
+    @Override
+    public String toString() {
+      return listener + " on " + eventType + ": " + invocations + " calls, " + errors + " errors, latency mean "
+        + meanNanos + " ns, p50 " + p50Nanos + " ns, p99 " + p99Nanos + " ns, max " + maxNanos + " ns";
+    }
+  }
+}
+
+// Exposes a ListenerMetrics snapshot as read-only JMX attributes. Written
+// as a DynamicMBean because standard MBean interfaces have to be public.
+final class ListenerMetricsMBean implements DynamicMBean {
+  private static final String[] ATTRIBUTES = {"Invocations", "Errors", "MeanNanos", "P50Nanos", "P99Nanos", "MaxNanos"};
+  private final ListenerMetrics metrics;
+
+  ListenerMetricsMBean(ListenerMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  @Override
+  public Object getAttribute(String attribute) throws AttributeNotFoundException {
+    ListenerMetrics.Snapshot snapshot = metrics.snapshot();
+    switch (attribute) {
+      case "Invocations": return snapshot.invocations;
+      case "Errors": return snapshot.errors;
+      case "MeanNanos": return snapshot.meanNanos;
+      case "P50Nanos": return snapshot.p50Nanos;
+      case "P99Nanos": return snapshot.p99Nanos;
+      case "MaxNanos": return snapshot.maxNanos;
+      default: throw new AttributeNotFoundException(attribute);
+    }
+  }
+
+  @Override
+  public AttributeList getAttributes(String[] attributes) {
+    AttributeList list = new AttributeList();
+    for (String attribute : attributes) {
+      try {
+        list.add(new Attribute(attribute, getAttribute(attribute)));
+      } catch (AttributeNotFoundException e) {
+        // left out, as the DynamicMBean contract asks
+      }
+    }
+    return list;
+  }
+
+  @Override
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+  }
+
+  @Override
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  @Override
+  public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+    throw new ReflectionException(new NoSuchMethodException(actionName));
+  }
+
+  @Override
+  public MBeanInfo getMBeanInfo() {
+    MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[ATTRIBUTES.length];
+    for (int i = 0; i < ATTRIBUTES.length; i++) {
+      attributes[i] = new MBeanAttributeInfo(ATTRIBUTES[i], "long", ATTRIBUTES[i], true, false, false);
+    }
+    return new MBeanInfo(ListenerMetrics.class.getName(), metrics.listener + " on " + metrics.eventType,
+      attributes, null, null, null);
+  }
+}
+
+// The metrics of every subscription of one EventManager (see
+// EventManager.enableMetrics()). Metrics of a subscription go away when
+// it is unsubscribed or pruned.
+final class EventMetrics {
+  private final Map<Subscription, ListenerMetrics> metrics = new ConcurrentHashMap<>();
+  private final String jmxDomain; // null: no MBeans
+  private final AtomicLong ids = new AtomicLong();
+
+  EventMetrics(String jmxDomain) {
+    this.jmxDomain = jmxDomain;
+  }
+
+  // Registering and unregistering a subscription are serialized, so its
+  // entry and its MBean come and go together.
+  synchronized ListenerMetrics register(Subscription subscription, EventListener listener) {
+    Class<?> type = listener.getClass();
+    String name = type.isAnonymousClass() ? type.getSuperclass().getSimpleName() : type.getSimpleName();
+    if (name.contains("$$Lambda")) {
+      name = "lambda in " + name.substring(0, name.indexOf("$$Lambda"));
+    }
+    ListenerMetrics created = new ListenerMetrics(ids.incrementAndGet(), name, subscription.type.name);
+    metrics.put(subscription, created);
+    if (jmxDomain != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new ListenerMetricsMBean(created), objectName(created));
+      } catch (JMException e) {
+        e.printStackTrace();
+      }
+    }
+    return created;
+  }
+
+  synchronized void unregister(Subscription subscription) {
+    ListenerMetrics removed = metrics.remove(subscription);
+    if (removed != null && jmxDomain != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(removed));
+      } catch (JMException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  public List<ListenerMetrics.Snapshot> snapshot() {
+    List<ListenerMetrics.Snapshot> snapshots = new ArrayList<>();
+    for (ListenerMetrics listenerMetrics : metrics.values()) {
+      snapshots.add(listenerMetrics.snapshot());
+    }
+    return snapshots;
+  }
+
+  // The id keeps the names of two subscriptions of the same listener class
+  // apart.
+  private ObjectName objectName(ListenerMetrics listenerMetrics) throws MalformedObjectNameException {
+    return new ObjectName(jmxDomain + ":type=EventListener,event=" + ObjectName.quote(listenerMetrics.eventType)
+      + ",name=" + ObjectName.quote(listenerMetrics.listener + "#" + listenerMetrics.id));
+  }
+}
+
+// What gets handed to the dispatcher in place of a listener while metrics
+// are on. There is one per subscription, created on first delivery, so a
+// listener on several event types has several of them: dispatchers that
+// keep per-listener state must key it by target(), not by the stand-in.
+final class MeteredListener implements BatchEventListener {
+  private final Subscription subscription;
+  private final ListenerMetrics metrics;
+
+  MeteredListener(Subscription subscription, ListenerMetrics metrics) {
+    this.subscription = subscription;
+    this.metrics = metrics;
+  }
+
+  // The listener this stands in for, or null once it was garbage collected.
+  EventListener target() {
+    return subscription.peek();
+  }
+
+  @Override
+  public void update(String eventType, File file) {
+    EventListener listener = subscription.peek();
+    if (listener == null) {
+      return;
+    }
+    long began = System.nanoTime();
+    boolean failed = true;
+    try {
       listener.update(eventType, file);
+      failed = false;
+    } finally {
+      metrics.record(System.nanoTime() - began, failed);
+    }
+  }
+
+  @Override
+  public void update(String eventType, List<File> files) {
+    EventListener listener = subscription.peek();
+    if (listener == null) {
+      return;
+    }
+    long began = System.nanoTime();
+    boolean failed = true;
+    try {
+      BatchEventListener.updateAll(listener, eventType, files);
+      failed = false;
+    } finally {
+      metrics.record(System.nanoTime() - began, failed);
+    }
+  }
+}
+
+// Decides on which thread, and when, a listener receives an event.
+interface Dispatcher {
+  void dispatch(EventListener listener, String eventType, File file);
+
+  // Delivers a burst of events of one type to a listener.
+  default void dispatchAll(EventListener listener, String eventType, List<File> files) {
+    BatchEventListener.updateAll(listener, eventType, files);
+  }
+
+  // Called when a listener's last subscription goes, to drop any state
+  // kept for it.
+  default void forget(EventListener listener) {}
+
+  default boolean awaitDelivery(long timeout, TimeUnit unit) throws InterruptedException {
+    return true;
+  }
+}
+
+// Calls the listener right away on the notifying thread.
+class DirectDispatcher implements Dispatcher {
+  @Override
+  public void dispatch(EventListener listener, String eventType, File file) {
+    listener.update(eventType, file);
+  }
+}
+
+// What AsyncDispatcher does when maxPending deliveries are already queued.
+enum Backpressure {
+  // Wait for a delivery to finish.
+  BLOCK,
+  // Skip this delivery (see AsyncDispatcher.droppedCount()).
+  DROP,
+  // Deliver it on the notifying thread instead.
+  CALLER_RUNS
+}
+
+// Hands every delivery to an executor, so notify() returns as soon as the
+// events are queued no matter how slow the listeners are. Pick the
+// executor to suit the listeners:
+//  - Executors.newCachedThreadPool() (or, on Java 21+,
+//    Executors.newVirtualThreadPerTaskExecutor()) for a thread per task,
+//  - Executors.newFixedThreadPool(n) for a bounded pool.
+// With keepOrder every listener gets its own serial queue, so it sees
+// events one at a time and in the order they were notified, while
+// different listeners still run in parallel.
+//
+// At most maxPending deliveries are queued or running at once; beyond
+// that the Backpressure policy applies.
+class AsyncDispatcher implements Dispatcher {
+  private final Executor executor;
+  private final int maxPending;
+  private final Semaphore pending;
+  private final Backpressure backpressure;
+  private final boolean keepOrder;
+  // Weak keys, so a queue never keeps a weakly subscribed listener alive.
+  private final Map<EventListener, SerialQueue> queues = Collections.synchronizedMap(new WeakHashMap<>());
+  private final LongAdder dropped = new LongAdder();
+
+  public AsyncDispatcher(Executor executor, int maxPending, Backpressure backpressure, boolean keepOrder) {
+    this.executor = executor;
+    this.maxPending = maxPending;
+    this.pending = new Semaphore(maxPending);
+    this.backpressure = backpressure;
+    this.keepOrder = keepOrder;
+  }
+
+  @Override
+  public void dispatch(EventListener listener, String eventType, File file) {
+    submit(listener, () -> listener.update(eventType, file));
+  }
+
+  // The whole burst is a single delivery.
+  @Override
+  public void dispatchAll(EventListener listener, String eventType, List<File> files) {
+    submit(listener, () -> BatchEventListener.updateAll(listener, eventType, files));
+  }
+
+  private void submit(EventListener listener, Runnable update) {
+    if (!pending.tryAcquire()) {
+      // Running on the caller's thread would let this event overtake the
+      // ones already queued for the listener, so keepOrder always blocks.
+      if (backpressure == Backpressure.BLOCK || (backpressure == Backpressure.CALLER_RUNS && keepOrder)) {
+        pending.acquireUninterruptibly();
+      } else if (backpressure == Backpressure.DROP) {
+        dropped.increment();
+        return;
+      } else {
+        deliver(update);
+        return;
+      }
+    }
+    Runnable delivery = () -> {
+      try {
+        deliver(update);
+      } finally {
+        pending.release();
+      }
+    };
+    if (keepOrder) {
+      // Under the map's lock, so forget() can't drop a queue between
+      // being looked up here and getting the task.
+      synchronized (queues) {
+        queues.computeIfAbsent(orderingKey(listener), l -> new SerialQueue()).add(delivery);
+      }
+      return;
+    }
+    try {
+      executor.execute(delivery);
+    } catch (RejectedExecutionException e) {
+      pending.release();
+      throw e;
+    }
+  }
+
+  // Only drops a queue that is idle: a new queue for the same listener
+  // must never drain at the same time as the old one. A busy queue stays
+  // until its listener is garbage collected.
+  @Override
+  public void forget(EventListener listener) {
+    synchronized (queues) {
+      EventListener key = orderingKey(listener);
+      SerialQueue queue = queues.get(key);
+      if (queue != null && queue.isIdle()) {
+        queues.remove(key);
+      }
+    }
+  }
+
+  // Metrics hand over a stand-in per subscription; queueing by the
+  // listener behind it keeps one listener on several event types to one
+  // call at a time.
+  private static EventListener orderingKey(EventListener listener) {
+    if (listener instanceof MeteredListener) {
+      EventListener target = ((MeteredListener) listener).target();
+      if (target != null) {
+        return target;
+      }
+    }
+    return listener;
+  }
+
+  // Takes every permit, which is only possible once nothing is pending.
+  @Override
+  public boolean awaitDelivery(long timeout, TimeUnit unit) throws InterruptedException {
+    if (!pending.tryAcquire(maxPending, timeout, unit)) {
+      return false;
+    }
+    pending.release(maxPending);
+    return true;
+  }
+
+  public long droppedCount() {
+    return dropped.sum();
+  }
+
+  private static void deliver(Runnable update) {
+    try {
+      update.run();
+    } catch (RuntimeException e) {
+      // One failing listener must not stop the others.
+      e.printStackTrace();
+    }
+  }
+
+  // Runs its tasks one after another on the shared executor. At most one
+  // drain task per queue is scheduled at any time.
+  private class SerialQueue {
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    void add(Runnable task) {
+      tasks.add(task);
+      if (scheduled.compareAndSet(false, true)) {
+        schedule();
+      }
+    }
+
+    boolean isIdle() {
+      return !scheduled.get() && tasks.isEmpty();
+    }
+
+    private void schedule() {
+      try {
+        executor.execute(this::drain);
+      } catch (RejectedExecutionException e) {
+        // Nothing is going to run what is queued: count it as dropped,
+        // give its permits back and let the next add() try again.
+        int lost = 0;
+        while (tasks.poll() != null) {
+          lost++;
+        }
+        scheduled.set(false);
+        dropped.add(lost);
+        pending.release(lost);
+        throw e;
+      }
+    }
+
+    private void drain() {
+      Runnable task;
+      while ((task = tasks.poll()) != null) {
+        task.run();
+      }
+      scheduled.set(false);
+      // A task added after our last poll() but before set(false) found
+      // the queue still scheduled; pick it up ourselves.
+      if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+        schedule();
+      }
     }
   }
 }
@@ -61,20 +1713,28 @@ class EventManager {
 // in with composition, as we did here.
 class Editor {
   public EventManager events;
+  private final EventType open;
+  private final EventType save;
   private File file;
 
   public Editor() {
-    this.events = new EventManager("open", "save");
+    this(new DirectDispatcher());
+  }
+
+  public Editor(Dispatcher dispatcher) {
+    this.events = new EventManager(dispatcher, "open", "save");
+    this.open = events.type("open");
+    this.save = events.type("save");
   }
 
   public void openFile(String filePath) {
     this.file = new File(filePath);
-    events.notify("open", file);
+    events.notify(open, file);
   }
 
   public void saveFile() throws Exception {
     if (this.file != null) {
-      events.notify("save", file);
+      events.notify(save, file);
     } else {
       throw new Exception("Please open a file first.");
     }
@@ -88,6 +1748,30 @@ interface EventListener {
   void update(String eventType, File file);
 }
 
+// A subscriber that can handle a burst of events in one go, e.g. with one
+// write for the whole burst instead of one per event. It still works with
+// event types that aren't batched: every event is then a burst of one.
+interface BatchEventListener extends EventListener {
+  void update(String eventType, List<File> files);
+
+  @Override
+  default void update(String eventType, File file) {
+    update(eventType, List.of(file));
+  }
+
+  // Hands the burst to the listener in one call if it can take it, or one
+  // event at a time if it can't.
+  static void updateAll(EventListener listener, String eventType, List<File> files) {
+    if (listener instanceof BatchEventListener) {
+      ((BatchEventListener) listener).update(eventType, files);
+      return;
+    }
+    for (File file : files) {
+      listener.update(eventType, file);
+    }
+  }
+}
+
 // Concrete subscribers react to updates issued by the publisher
 // they are attached to.
 class EmailNotificationListener implements EventListener {
@@ -103,7 +1787,8 @@ class EmailNotificationListener implements EventListener {
   }
 }
 
-class LogOpenListener implements EventListener {
+// Writes one log line per burst of events, however long the burst is.
+class LogOpenListener implements BatchEventListener {
   private File log;
 
   public LogOpenListener(String fileName) {
@@ -111,8 +1796,12 @@ class LogOpenListener implements EventListener {
   }
 
   @Override
-  public void update(String eventType, File file) {
-    System.out.println("Save to log " + log + ": Someone has performed " + eventType + " operation with the follwoing file: " + file.getName());
+  public void update(String eventType, List<File> files) {
+    StringBuilder names = new StringBuilder();
+    for (File file : files) {
+      names.append(names.length() == 0 ? "" : ", ").append(file.getName());
+    }
+    System.out.println("Save to log " + log + ": Someone has performed " + eventType + " operation with the follwoing file: " + names);
   }
 }
 
@@ -130,5 +1819,382 @@ class Main {
     } catch (Exception e) {
       e.printStackTrace();
     }
+
+    // An event type named twice is still just one type.
+    EventManager twice = new EventManager("open", "open");
+    twice.subscribe("open", (eventType, file) -> {}).cancel();
+
+    // A listener that takes 200 ms, like a real SMTP round trip, makes
+    // every save take 200 ms. Delivered asynchronously the save returns
+    // right away and the email goes out in the background.
+    System.out.println();
+    EventListener slowEmail = (eventType, file) -> {
+      try {
+        Thread.sleep(200);
+      } catch (InterruptedException e) {
+        e.printStackTrace();
+      }
+    };
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    Editor syncEditor = new Editor();
+    Editor asyncEditor = new Editor(new AsyncDispatcher(pool, 1000, Backpressure.BLOCK, true));
+    for (Editor e : new Editor[] {syncEditor, asyncEditor}) {
+      e.events.subscribe("save", slowEmail);
+      e.openFile("test.txt");
+      long began = System.nanoTime();
+      try {
+        for (int i = 0; i < 5; i++) {
+          e.saveFile();
+        }
+        long saved = System.nanoTime();
+        e.events.awaitDelivery(10, TimeUnit.SECONDS);
+        System.out.println((e == syncEditor ? "sync" : "async") + ": 5 saves took "
+          + (saved - began) / 1_000_000 + " ms, delivered after "
+          + (System.nanoTime() - began) / 1_000_000 + " ms");
+      } catch (Exception ex) {
+        ex.printStackTrace();
+      }
+    }
+    pool.shutdown();
+
+    // Autosave in a tight loop: 10,000 saves spread over 3 files. Batched
+    // and coalesced, the log listener writes a line per burst naming each
+    // file once, instead of one line per save.
+    System.out.println();
+    Editor autosave = new Editor();
+    autosave.events.batch("save", 1000, 100, TimeUnit.MILLISECONDS, true);
+    autosave.events.subscribe("save", new LogOpenListener("/path/to/log/file.txt"));
+    String[] open = {"a.txt", "b.txt", "c.txt"};
+    try {
+      for (int i = 0; i < 10_000; i++) {
+        autosave.openFile(open[i % open.length]);
+        autosave.saveFile();
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    autosave.events.flush();
+
+    // Back to one event at a time.
+    autosave.events.unbatch("save");
+    try {
+      autosave.saveFile();
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+
+    // notify() throughput while another thread keeps subscribing and
+    // unsubscribing. With the old HashMap of ArrayLists this would throw
+    // ConcurrentModificationException.
+    System.out.println();
+    for (int size : new int[] {1, 10, 1000}) {
+      System.out.println(size + " listener(s): " + notifyThroughput(size) + " notify/s");
+    }
+
+    // Short-lived components subscribe weakly and never unsubscribe. The
+    // subscription count, heap and notify() latency should all stay flat.
+    System.out.println();
+    weakSubscriptionChurn(2_000_000);
+
+    // A time-limited subscription stops receiving events on its own.
+    Editor shortLived = new Editor();
+    shortLived.events.subscribe("open", new LogOpenListener("/tmp/short.log"), Retention.STRONG, Duration.ofMillis(50));
+    shortLived.openFile("first.txt");
+    try {
+      Thread.sleep(100);
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+    }
+    shortLived.openFile("second.txt"); // not logged
+
+    // Listeners are called by priority, and only for files they want.
+    System.out.println();
+    Editor ordered = new Editor();
+    ordered.events.subscribe("save", (eventType, file) -> System.out.println("priority 1, any file"), 1, EventFilter.ANY);
+    ordered.events.subscribe("save", (eventType, file) -> System.out.println("priority 5, *.md only"), 5, EventFilter.extension("md"));
+    ordered.events.subscribe("save", (eventType, file) -> System.out.println("priority 10, any file"), 10, EventFilter.ANY);
+    ordered.events.subscribe("save", (eventType, file) -> System.out.println("priority 10, *.txt only"), 10, EventFilter.extension("txt"));
+    ordered.openFile("notes.txt");
+    try {
+      ordered.saveFile();
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+
+    // 1000 listeners that each want one extension: notify() only ever
+    // looks at the one that wants the file.
+    EventManager byExtension = new EventManager("save");
+    LongAdder delivered = new LongAdder();
+    for (int i = 0; i < 1000; i++) {
+      byExtension.subscribe("save", (eventType, file) -> delivered.increment(), 0, EventFilter.extension("ext" + i));
+    }
+    EventType save = byExtension.type("save");
+    File report = new File("report.ext7");
+    int calls = 1_000_000;
+    long began = System.nanoTime();
+    for (int i = 0; i < calls; i++) {
+      byExtension.notify(save, report);
+    }
+    System.out.println("\n1000 filtered listeners, 1 interested: "
+      + (System.nanoTime() - began) / calls + " ns per notify, " + delivered.sum() + " deliveries");
+
+    try {
+      System.out.println();
+      journalRestart();
+      System.out.println();
+      for (int threads : new int[] {1, 4, 16}) {
+        journalThroughput(threads, true);
+      }
+      journalThroughput(16, false);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+
+    System.out.println();
+    try {
+      listenerMetrics();
+    } catch (MalformedObjectNameException | InterruptedException e) {
+      e.printStackTrace();
+    }
+    for (int round = 0; round < 2; round++) {
+      long plain = meteredNotify(false);
+      long metered = meteredNotify(true);
+      System.out.println("10 listeners, metrics off: " + plain + " ns per notify, on: " + metered + " ns per notify");
+    }
+  }
+
+  // One slow listener and one that fails now and then among quick ones:
+  // the metrics point them out.
+  static void listenerMetrics() throws MalformedObjectNameException, InterruptedException {
+    EventManager events = new EventManager("save");
+    EventMetrics metrics = events.enableMetrics("observer");
+    Subscription quick = events.subscribe(events.type("save"), (eventType, file) -> {});
+    events.subscribe("save", new EmailNotificationListener("admin@example.com") {
+      @Override
+      public void update(String eventType, File file) {
+        long until = System.nanoTime() + 20_000;
+        while (System.nanoTime() < until) {
+          // busy, like a listener talking to a mail server
+        }
+      }
+    });
+    int[] calls = new int[1];
+    events.subscribe("save", new LogOpenListener("/path/to/log/file.txt") {
+      @Override
+      public void update(String eventType, File file) {
+        if (++calls[0] % 100 == 0) {
+          throw new IllegalStateException("log disk full");
+        }
+      }
+    });
+    EventType save = events.type("save");
+    File file = new File("test.txt");
+    for (int i = 0; i < 10_000; i++) {
+      try {
+        events.notify(save, file);
+      } catch (IllegalStateException e) {
+        // counted as an error by the metrics
+      }
+    }
+    metrics.snapshot().forEach(System.out::println);
+
+    // Unsubscribing takes the listener's MBean away with it.
+    ObjectName all = new ObjectName("observer:*");
+    int registered = ManagementFactory.getPlatformMBeanServer().queryNames(all, null).size();
+    quick.cancel();
+    System.out.println("MBeans: " + registered + ", after one unsubscribe: "
+      + ManagementFactory.getPlatformMBeanServer().queryNames(all, null).size());
+
+    // Metrics don't change how a dispatcher orders deliveries: one
+    // listener on two event types still gets one call at a time.
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    EventManager ordered = new EventManager(new AsyncDispatcher(pool, 1000, Backpressure.BLOCK, true), "open", "save");
+    ordered.enableMetrics(null);
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger mostAtOnce = new AtomicInteger();
+    EventListener one = (eventType, opened) -> {
+      mostAtOnce.accumulateAndGet(running.incrementAndGet(), Math::max);
+      Thread.yield();
+      running.decrementAndGet();
+    };
+    ordered.subscribe("open", one);
+    ordered.subscribe("save", one);
+    for (int i = 0; i < 10_000; i++) {
+      ordered.notify(ordered.type(i % 2 == 0 ? "open" : "save"), file);
+    }
+    ordered.awaitDelivery(10, TimeUnit.SECONDS);
+    pool.shutdown();
+    System.out.println("one listener on two event types, metrics on: at most " + mostAtOnce.get() + " call(s) at once");
+  }
+
+  // Time per notify() to 10 listeners that do nothing, i.e. the cost of
+  // delivery itself, with and without metrics.
+  static long meteredNotify(boolean withMetrics) {
+    EventManager events = new EventManager("save");
+    if (withMetrics) {
+      events.enableMetrics(null);
+    }
+    for (int i = 0; i < 10; i++) {
+      events.subscribe("save", (eventType, file) -> {});
+    }
+    EventType save = events.type("save");
+    File file = new File("test.txt");
+    int notifies = 1_000_000;
+    long began = System.nanoTime();
+    for (int i = 0; i < notifies; i++) {
+      events.notify(save, file);
+    }
+    return (System.nanoTime() - began) / notifies;
+  }
+
+  // Three "runs" of the editor sharing one journal.
+  static void journalRestart() throws Exception {
+    Path journalFile = Files.createTempDirectory("journal").resolve("events.journal");
+
+    // Run 1: files get saved while the email listener isn't there.
+    try (EventJournal journal = new EventJournal(journalFile, true)) {
+      Editor editor = new Editor();
+      editor.events.journal(journal);
+      editor.openFile("a.txt");
+      editor.saveFile();
+      editor.openFile("b.txt");
+      editor.saveFile();
+    }
+
+    // Run 2: the email listener comes back, catches up on both saves,
+    // gets a live one and checkpoints.
+    try (EventJournal journal = new EventJournal(journalFile, true)) {
+      Editor editor = new Editor();
+      editor.events.journal(journal);
+      editor.events.subscribeDurable("save", "email", new EmailNotificationListener("admin@example.com"));
+      editor.openFile("c.txt");
+      editor.saveFile();
+      journal.checkpoint();
+    }
+
+    // Run 3: nothing new since the checkpoint, so nothing is replayed.
+    try (EventJournal journal = new EventJournal(journalFile, true)) {
+      Editor editor = new Editor();
+      editor.events.journal(journal);
+      editor.events.subscribeDurable("save", "email", new EmailNotificationListener("admin@example.com"));
+      System.out.println("(restarted after checkpoint, nothing replayed)");
+    }
+
+    // Run 4: the process died while writing the next record's header. The
+    // torn bytes are cut off on open.
+    long intact = Files.size(journalFile);
+    Files.write(journalFile, new byte[] {0, 0, 0}, StandardOpenOption.APPEND);
+    new EventJournal(journalFile, true).close();
+    System.out.println("(torn record header dropped: " + (Files.size(journalFile) == intact) + ")");
+    deleteJournal(journalFile);
+  }
+
+  // Journaled notify() throughput with several threads saving at once.
+  // With fsync, group commit lets the threads share each force().
+  static void journalThroughput(int threads, boolean fsync) throws Exception {
+    Path journalFile = Files.createTempDirectory("journal").resolve("events.journal");
+    try (EventJournal journal = new EventJournal(journalFile, fsync)) {
+      EventManager events = new EventManager("save");
+      events.journal(journal);
+      EventType save = events.type("save");
+      File file = new File("test.txt");
+      LongAdder notified = new LongAdder();
+      long until = System.nanoTime() + 1_000_000_000L;
+      Thread[] writers = new Thread[threads];
+      for (int i = 0; i < threads; i++) {
+        writers[i] = new Thread(() -> {
+          while (System.nanoTime() < until) {
+            events.notify(save, file);
+            notified.increment();
+          }
+        });
+        writers[i].start();
+      }
+      for (Thread writer : writers) {
+        writer.join();
+      }
+      System.out.println(threads + " thread(s), fsync " + (fsync ? "on" : "off") + ": "
+        + notified.sum() + " events/s, " + notified.sum() / Math.max(1, journal.forces()) + " events per write");
+    }
+    deleteJournal(journalFile);
+  }
+
+  // Removes a journal made by the demos, its checkpoint and its directory.
+  static void deleteJournal(Path journalFile) throws IOException {
+    Files.deleteIfExists(journalFile);
+    Files.deleteIfExists(journalFile.resolveSibling(journalFile.getFileName() + ".offsets"));
+    Files.delete(journalFile.getParent());
+  }
+
+  static void weakSubscriptionChurn(int cycles) {
+    EventManager events = new EventManager("save");
+    EventType save = events.type("save");
+    File file = new File("test.txt");
+    Runtime runtime = Runtime.getRuntime();
+    long notifyNanos = 0;
+    long notifies = 0;
+    for (int i = 1; i <= cycles; i++) {
+      // Each listener is a new object only the subscription points to,
+      // so it becomes garbage right away.
+      int[] component = new int[1];
+      events.subscribe(save, (eventType, f) -> component[0]++, Retention.WEAK, null);
+      if (i % 1000 == 0) {
+        long began = System.nanoTime();
+        events.notify(save, file);
+        notifyNanos += System.nanoTime() - began;
+        notifies++;
+      }
+      if (i % (cycles / 4) == 0) {
+        int subscribed = events.subscriberCount(save);
+        System.gc();
+        long usedKb = (runtime.totalMemory() - runtime.freeMemory()) / 1024;
+        System.out.println(i + " subscribe cycles: " + subscribed + " subscriptions held, "
+          + usedKb + " KB heap used, " + notifyNanos / notifies + " ns per notify");
+        notifyNanos = 0;
+        notifies = 0;
+      }
+    }
+
+    // Listeners that want files notify() never sees are never delivered
+    // to, so it can't notice they are gone; subscribe() sweeps them.
+    EventFilter never = EventFilter.extension("never");
+    for (int i = 0; i < cycles / 10; i++) {
+      int[] component = new int[1];
+      events.subscribe(save, (eventType, f) -> component[0]++, 0, never, Retention.WEAK, null);
+    }
+    System.out.println(cycles / 10 + " weak subscriptions that never match: "
+      + events.subscriberCount(save) + " subscriptions held");
+  }
+
+  static long notifyThroughput(int size) {
+    EventManager events = new EventManager("save");
+    EventType save = events.type("save");
+    LongAdder delivered = new LongAdder();
+    for (int i = 0; i < size; i++) {
+      events.subscribe(save, (eventType, file) -> delivered.increment());
+    }
+    AtomicBoolean running = new AtomicBoolean(true);
+    Thread churn = new Thread(() -> {
+      EventListener extra = (eventType, file) -> {};
+      while (running.get()) {
+        events.subscribe(save, extra);
+        events.unsubscribe(save, extra);
+      }
+    });
+    churn.start();
+
+    File file = new File("test.txt");
+    long calls = 0;
+    long began = System.nanoTime();
+    long until = began + 500_000_000L;
+    while (System.nanoTime() < until) {
+      for (int i = 0; i < 100; i++) {
+        events.notify(save, file);
+      }
+      calls += 100;
+    }
+    long elapsed = System.nanoTime() - began;
+    running.set(false);
+    return calls * 1_000_000_000L / elapsed;
   }
 }
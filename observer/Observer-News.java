@@ -6,26 +6,48 @@ You may represent the classes and interfaces in separate Java files:
 
 observers
 |_ Channel.java
+|_ ConflatingChannel.java
 |_ NewsChannel.java
 
 observables
 |_ Agency.java
+|_ DropPolicy.java
+|_ FanOut.java
 |_ NewsAgency.java
+|_ NewsPublisher.java
+|_ NewsSubscription.java
+|_ TopicTrie.java
 
 Main.java
 
 Reference: https://www.baeldung.com/java-observer-pattern
 **/
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.*;
 
 /* Observerables */
-interface Agency {
-  public void addObserver(Channel channel);
-  public void removeObserver(Channel channel);
+interface Agency<T> {
+  public void addObserver(Channel<T> channel);
+  public void removeObserver(Channel<T> channel);
 }
 
 // a news agency can notify channels when it receives news. 
@@ -36,42 +58,643 @@ interface Agency {
 // the state of NewsAgency changes. When the change happens, 
 // NewsAgency notifies the observers about this fact 
 // by calling their update() method.
-class NewsAgency implements Agency {
+//
+// Channels are updated right away, before setNews() returns. With many
+// channels, they are updated in parallel (see FanOut). For channels that can't keep up, the agency is also a Flow.Publisher (see
+// publisher()): a Flow.Subscriber only gets as much news as it asks for.
+// Channels that only care about the latest news can be added with
+// addConflatingObserver() instead.
+//
+// News can also be set under a topic such as "sports.football.uk", and a
+// channel can subscribe to just the topics it wants, with wildcards (see
+// TopicTrie). Channels added without a topic get all news.
+class NewsAgency implements Agency<String> {
   private String news;
-  private List<Channel> channels = new ArrayList<>();
+  private final FanOut<String> channels;
+  // Where each channel sits in channels, so it can be removed without a
+  // search. A channel added more than once has more than one slot.
+  private final Map<Channel<String>, List<FanOut.Slot<String>>> slots = new HashMap<>();
+  private final TopicTrie<String> topics = new TopicTrie<>();
+  private final NewsPublisher publisher;
+
+  NewsAgency() {
+    this(ForkJoinPool.commonPool());
+  }
+
+  // The executor delivers news to Flow subscribers. If it is a
+  // ForkJoinPool it also updates the channels, otherwise the common pool
+  // does.
+  NewsAgency(Executor executor) {
+    this.channels = new FanOut<>(executor instanceof ForkJoinPool
+      ? (ForkJoinPool) executor : ForkJoinPool.commonPool());
+    this.publisher = new NewsPublisher(executor, 256, DropPolicy.DROP_OLDEST);
+  }
+
+  // The pool updates channels and delivers news to Flow subscribers.
+  NewsAgency(ForkJoinPool pool) {
+    this((Executor) pool);
+  }
 
   @Override
-  public void addObserver(Channel channel) {
-    this.channels.add(channel);
+  public void addObserver(Channel<String> channel) {
+    // Changing channels and slots under one lock could deadlock with a
+    // channel that removes itself from within update().
+    FanOut.Slot<String> slot = this.channels.add(channel);
+    synchronized (slots) {
+      slots.computeIfAbsent(channel, c -> new ArrayList<>(1)).add(slot);
+    }
+  }
+
+  // Adds the channel in conflating mode: it isn't updated on setNews(),
+  // only when read() is called on the returned ConflatingChannel, and then
+  // only with the latest news. Remove it by removing the returned
+  // ConflatingChannel.
+  public ConflatingChannel<String> addConflatingObserver(Channel<String> channel) {
+    ConflatingChannel<String> conflating = new ConflatingChannel<>(channel);
+    addObserver(conflating);
+    return conflating;
   }
 
   @Override
-  public void removeObserver(Channel channel) {
-    this.channels.remove(channel);
+  public void removeObserver(Channel<String> channel) {
+    FanOut.Slot<String> slot;
+    synchronized (slots) {
+      List<FanOut.Slot<String>> added = slots.get(channel);
+      if (added == null) {
+        return;
+      }
+      slot = added.remove(added.size() - 1);
+      if (added.isEmpty()) {
+        slots.remove(channel);
+      }
+    }
+    this.channels.remove(slot);
+  }
+
+  // Adds the channel for the news under the topics the pattern matches.
+  public void addObserver(String topicPattern, Channel<String> channel) {
+    topics.subscribe(topicPattern, channel);
+  }
+
+  public void removeObserver(String topicPattern, Channel<String> channel) {
+    topics.unsubscribe(topicPattern, channel);
   }
 
   public void setNews(String news) {
     this.news = news;
-    for (Channel channel : this.channels) {
-      channel.update(this.news);
+    this.channels.publish(news);
+    publisher.publish(news);
+  }
+
+  // Updates the channels whose pattern matches the topic, on this thread,
+  // as well as every channel that gets all news.
+  public void setNews(String topic, String news) {
+    topics.publish(topic, news);
+    setNews(news);
+  }
+
+  public NewsPublisher publisher() {
+    return publisher;
+  }
+}
+
+// Delivers values to a large number of channels.
+//
+// The channels are spread round-robin over a few shards per pool thread.
+// publish() updates the shards in parallel on a ForkJoinPool, splitting
+// the shards in halves so that idle workers can steal the rest, and
+// returns once every channel has been updated. Within a shard, channels
+// are always updated in the same order, and since publish() calls don't
+// overlap, every shard sees the values in the order they were published.
+//
+// Each shard keeps its channels in slots. Adding a channel takes a free
+// slot (or a new one at the end) and removing it frees the slot again, so
+// both take constant time however many channels there are. Channels are
+// updated from a copy of the slots, taken after the shard last changed,
+// without holding the shard's lock: update() may then add or remove
+// channels, or wait on a thread that does, without deadlocking the pool.
+final class FanOut<T> {
+  // Below this many channels, forking tasks costs more than it saves.
+  static final int PARALLEL_THRESHOLD = 2048;
+  private final ForkJoinPool pool;
+  private final List<Shard<T>> shards = new ArrayList<>();
+  private final AtomicInteger nextShard = new AtomicInteger();
+  private final AtomicInteger size = new AtomicInteger();
+
+  // A channel's place in a FanOut, needed to remove it.
+  static final class Slot<T> {
+    final Channel<T> channel;
+    private final int shard;
+    private final int index;
+
+    Slot(Channel<T> channel, int shard, int index) {
+      this.channel = channel;
+      this.shard = shard;
+      this.index = index;
+    }
+  }
+
+  private static final class Shard<T> {
+    private final int id;
+    private final List<Slot<T>> slots = new ArrayList<>();
+    private int[] free = new int[16];
+    private int freeCount;
+    // The slots as of the last deliver(), and whether they changed since.
+    private List<Slot<T>> snapshot = new ArrayList<>();
+    private boolean changed;
+
+    Shard(int id) {
+      this.id = id;
+    }
+
+    synchronized Slot<T> add(Channel<T> channel) {
+      changed = true;
+      if (freeCount > 0) {
+        Slot<T> slot = new Slot<>(channel, id, free[--freeCount]);
+        slots.set(slot.index, slot);
+        return slot;
+      }
+      Slot<T> slot = new Slot<>(channel, id, slots.size());
+      slots.add(slot);
+      return slot;
+    }
+
+    synchronized boolean remove(Slot<T> slot) {
+      // The slot may have been freed and handed to another channel since.
+      if (slots.get(slot.index) != slot) {
+        return false;
+      }
+      slots.set(slot.index, null);
+      changed = true;
+      if (freeCount == free.length) {
+        free = Arrays.copyOf(free, free.length * 2);
+      }
+      free[freeCount++] = slot.index;
+      return true;
+    }
+
+    private synchronized List<Slot<T>> snapshot() {
+      if (changed) {
+        snapshot = new ArrayList<>(slots);
+        changed = false;
+      }
+      return snapshot;
+    }
+
+    // A channel removed while this runs may still get the value.
+    void deliver(T value) {
+      List<Slot<T>> current = snapshot();
+      for (int i = 0, n = current.size(); i < n; i++) {
+        Slot<T> slot = current.get(i);
+        if (slot != null) {
+          slot.channel.update(value);
+        }
+      }
+    }
+  }
+
+  private static final class Delivery<T> extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final List<Shard<T>> shards;
+    private final int from;
+    private final int to;
+    private final T value;
+
+    Delivery(List<Shard<T>> shards, int from, int to, T value) {
+      this.shards = shards;
+      this.from = from;
+      this.to = to;
+      this.value = value;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from == 1) {
+        shards.get(from).deliver(value);
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      invokeAll(new Delivery<>(shards, from, middle, value), new Delivery<>(shards, middle, to, value));
+    }
+  }
+
+  FanOut(ForkJoinPool pool) {
+    this.pool = pool;
+    int count = pool.getParallelism() * 4;
+    for (int i = 0; i < count; i++) {
+      shards.add(new Shard<>(i));
+    }
+  }
+
+  public Slot<T> add(Channel<T> channel) {
+    int shard = Math.floorMod(nextShard.getAndIncrement(), shards.size());
+    Slot<T> slot = shards.get(shard).add(channel);
+    size.incrementAndGet();
+    return slot;
+  }
+
+  public void remove(Slot<T> slot) {
+    if (shards.get(slot.shard).remove(slot)) {
+      size.decrementAndGet();
+    }
+  }
+
+  public int size() {
+    return size.get();
+  }
+
+  // Updates every channel with the value. If a channel throws, the
+  // exception is rethrown here once the other shards are done, and the
+  // rest of that channel's shard misses the value.
+  public synchronized void publish(T value) {
+    if (size.get() < PARALLEL_THRESHOLD) {
+      for (Shard<T> shard : shards) {
+        shard.deliver(value);
+      }
+      return;
+    }
+    pool.invoke(new Delivery<>(shards, 0, shards.size(), value));
+  }
+}
+
+// Channels subscribed to topic patterns.
+//
+// A topic is a list of levels separated by dots, like "sports.football.uk".
+// In a pattern, "*" matches exactly one level and "#", which must come
+// last, matches any number of levels, including none: "sports.*.uk"
+// matches "sports.football.uk", and "sports.#" matches "sports" as well
+// as "sports.football.uk".
+//
+// Patterns are kept in a trie with one level per node, and a channel sits
+// at the node where its pattern ends. To publish, we walk down the trie
+// along the topic's levels, also following the "*" branch at each level
+// and picking up the "#" channels on the way, so the work depends on how
+// deep the topic is and how many channels want it, not on how many
+// channels there are. A channel whose patterns overlap gets the news once
+// per matching pattern.
+final class TopicTrie<T> {
+  private final Node<T> root = new Node<>();
+
+  private static final class Node<T> {
+    final Map<String, Node<T>> children = new ConcurrentHashMap<>();
+    volatile Node<T> anyLevel;
+    // Channels whose pattern ends here, and those whose pattern ends with
+    // "#" right below here.
+    final List<Channel<T>> exact = new CopyOnWriteArrayList<>();
+    final List<Channel<T>> rest = new CopyOnWriteArrayList<>();
+
+    boolean isEmpty() {
+      return children.isEmpty() && anyLevel == null && exact.isEmpty() && rest.isEmpty();
+    }
+  }
+
+  // Changes to the trie are serialized; publish() runs alongside them
+  // without locking.
+  public synchronized void subscribe(String pattern, Channel<T> channel) {
+    String[] levels = levels(pattern, true);
+    Node<T> node = root;
+    int end = levels[levels.length - 1].equals("#") ? levels.length - 1 : levels.length;
+    for (int i = 0; i < end; i++) {
+      if (levels[i].equals("*")) {
+        if (node.anyLevel == null) {
+          node.anyLevel = new Node<>();
+        }
+        node = node.anyLevel;
+      } else {
+        node = node.children.computeIfAbsent(levels[i], level -> new Node<>());
+      }
+    }
+    (end < levels.length ? node.rest : node.exact).add(channel);
+  }
+
+  public synchronized void unsubscribe(String pattern, Channel<T> channel) {
+    String[] levels = levels(pattern, true);
+    unsubscribe(root, levels, 0, channel);
+  }
+
+  // Returns whether the node is left empty, so the parent can drop it.
+  private boolean unsubscribe(Node<T> node, String[] levels, int i, Channel<T> channel) {
+    if (i == levels.length) {
+      node.exact.remove(channel);
+    } else if (i == levels.length - 1 && levels[i].equals("#")) {
+      node.rest.remove(channel);
+    } else if (levels[i].equals("*")) {
+      if (node.anyLevel != null && unsubscribe(node.anyLevel, levels, i + 1, channel)) {
+        node.anyLevel = null;
+      }
+    } else {
+      Node<T> child = node.children.get(levels[i]);
+      if (child != null && unsubscribe(child, levels, i + 1, channel)) {
+        node.children.remove(levels[i]);
+      }
+    }
+    return node != root && node.isEmpty();
+  }
+
+  // Updates every channel whose pattern matches the topic.
+  public void publish(String topic, T value) {
+    publish(root, levels(topic, false), 0, value);
+  }
+
+  private void publish(Node<T> node, String[] levels, int i, T value) {
+    for (Channel<T> channel : node.rest) {
+      channel.update(value);
+    }
+    if (i == levels.length) {
+      for (Channel<T> channel : node.exact) {
+        channel.update(value);
+      }
+      return;
+    }
+    Node<T> child = node.children.get(levels[i]);
+    if (child != null) {
+      publish(child, levels, i + 1, value);
+    }
+    Node<T> anyLevel = node.anyLevel;
+    if (anyLevel != null) {
+      publish(anyLevel, levels, i + 1, value);
+    }
+  }
+
+  private static String[] levels(String topic, boolean pattern) {
+    String[] levels = topic.split("\\.", -1);
+    for (int i = 0; i < levels.length; i++) {
+      String level = levels[i];
+      boolean wildcard = level.equals("*") || level.equals("#");
+      if (level.isEmpty() || (!pattern && wildcard) || (level.equals("#") && i < levels.length - 1)
+          || (!wildcard && (level.contains("*") || level.contains("#")))) {
+        throw new IllegalArgumentException("Invalid " + (pattern ? "topic pattern" : "topic") + ": " + topic);
+      }
+    }
+    return levels;
+  }
+}
+
+// What to do with news for a Flow subscriber whose buffer is full, i.e.
+// one that has fallen behind.
+enum DropPolicy {
+  // Make room by dropping the oldest buffered news: the subscriber keeps
+  // up with the latest news, with gaps.
+  DROP_OLDEST,
+  // Drop the news that doesn't fit: the subscriber gets everything up to
+  // the point where it fell behind.
+  DROP_NEWEST,
+  // Give up on the subscriber: cancel it and signal onError.
+  ERROR
+}
+
+// Hands news to Flow subscribers. publish() never waits for a subscriber:
+// news goes into each subscriber's own bounded buffer, and is delivered on
+// the executor as the subscriber requests it. This way a slow subscriber
+// neither holds up the agency nor piles up news in memory.
+class NewsPublisher implements Flow.Publisher<String> {
+  private final Executor executor;
+  private final int defaultBufferSize;
+  private final DropPolicy defaultPolicy;
+  private final List<NewsSubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+  NewsPublisher(Executor executor, int defaultBufferSize, DropPolicy defaultPolicy) {
+    this.executor = executor;
+    this.defaultBufferSize = defaultBufferSize;
+    this.defaultPolicy = defaultPolicy;
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super String> subscriber) {
+    subscribe(subscriber, defaultBufferSize, defaultPolicy);
+  }
+
+  // Subscribes with a buffer of bufferSize news and the given policy for
+  // when it overflows.
+  public NewsSubscription subscribe(Flow.Subscriber<? super String> subscriber, int bufferSize, DropPolicy policy) {
+    if (bufferSize < 1) {
+      throw new IllegalArgumentException("bufferSize must be at least 1: " + bufferSize);
+    }
+    NewsSubscription subscription = new NewsSubscription(this, subscriber, executor, bufferSize, policy);
+    subscriptions.add(subscription);
+    subscription.start();
+    return subscription;
+  }
+
+  public int subscriberCount() {
+    return subscriptions.size();
+  }
+
+  void publish(String news) {
+    for (NewsSubscription subscription : subscriptions) {
+      subscription.offer(news);
+    }
+  }
+
+  // Completes every subscriber once it has received its buffered news.
+  public void close() {
+    for (NewsSubscription subscription : subscriptions) {
+      subscription.complete(null);
     }
   }
+
+  void remove(NewsSubscription subscription) {
+    subscriptions.remove(subscription);
+  }
+}
+
+// One subscriber's link to a NewsPublisher.
+//
+// The publisher adds news to the buffer and the subscriber adds demand
+// with request(); whoever changes something schedules a drain on the
+// executor. The pending counter makes sure only one drain runs at a time,
+// so the subscriber is always called from one thread at a time, in order.
+final class NewsSubscription implements Flow.Subscription {
+  private final NewsPublisher publisher;
+  private final Flow.Subscriber<? super String> subscriber;
+  private final Executor executor;
+  private final int bufferSize;
+  private final DropPolicy policy;
+  private final AtomicInteger pending = new AtomicInteger();
+  // Guarded by this.
+  private final ArrayDeque<String> buffer = new ArrayDeque<>();
+  private long demand;
+  private long dropped;
+  private boolean completed;
+  private Throwable failure;
+  private boolean subscribed;
+  private volatile boolean cancelled;
+
+  NewsSubscription(NewsPublisher publisher, Flow.Subscriber<? super String> subscriber, Executor executor,
+      int bufferSize, DropPolicy policy) {
+    this.publisher = publisher;
+    this.subscriber = subscriber;
+    this.executor = executor;
+    this.bufferSize = bufferSize;
+    this.policy = policy;
+  }
+
+  @Override
+  public void request(long n) {
+    synchronized (this) {
+      if (n <= 0) {
+        // Rule 3.9 of the Reactive Streams spec.
+        complete(new IllegalArgumentException("non-positive request: " + n));
+        return;
+      }
+      demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+    }
+    drain();
+  }
+
+  @Override
+  public void cancel() {
+    cancelled = true;
+    publisher.remove(this);
+    synchronized (this) {
+      buffer.clear();
+    }
+  }
+
+  // How many news this subscriber lost to its drop policy.
+  public synchronized long dropped() {
+    return dropped;
+  }
+
+  void start() {
+    drain();
+  }
+
+  void offer(String news) {
+    synchronized (this) {
+      if (completed || cancelled) {
+        return;
+      }
+      if (buffer.size() < bufferSize) {
+        buffer.add(news);
+      } else {
+        dropped++;
+        switch (policy) {
+          case DROP_OLDEST:
+            buffer.poll();
+            buffer.add(news);
+            break;
+          case DROP_NEWEST:
+            return;
+          case ERROR:
+            buffer.clear();
+            complete(new IllegalStateException("subscriber fell more than " + bufferSize + " news behind"));
+            break;
+        }
+      }
+    }
+    drain();
+  }
+
+  // Ends the subscription: with onComplete after the buffered news if
+  // failure is null, with onError right away otherwise.
+  void complete(Throwable failure) {
+    synchronized (this) {
+      if (completed) {
+        return;
+      }
+      completed = true;
+      this.failure = failure;
+      if (failure != null) {
+        buffer.clear();
+      }
+    }
+    drain();
+  }
+
+  private void drain() {
+    if (pending.getAndIncrement() == 0) {
+      executor.execute(this::run);
+    }
+  }
+
+  private void run() {
+    int missed = 1;
+    do {
+      if (!subscribed) {
+        subscribed = true;
+        subscriber.onSubscribe(this);
+      }
+      while (!cancelled) {
+        String next;
+        boolean done;
+        synchronized (this) {
+          next = demand > 0 ? buffer.poll() : null;
+          if (next != null && demand != Long.MAX_VALUE) {
+            demand--;
+          }
+          done = next == null && completed && buffer.isEmpty();
+        }
+        if (done) {
+          cancel();
+          if (failure == null) {
+            subscriber.onComplete();
+          } else {
+            subscriber.onError(failure);
+          }
+        } else if (next != null) {
+          try {
+            subscriber.onNext(next);
+          } catch (RuntimeException e) {
+            // Rule 2.13: a subscriber that throws is considered cancelled.
+            cancel();
+          }
+          continue;
+        }
+        break;
+      }
+      missed = pending.addAndGet(-missed);
+    } while (missed != 0);
+  }
 }
 
 /* Observers */
-interface Channel {
-  public void update(Object o);
+interface Channel<T> {
+  public void update(T o);
+}
+
+// Stands in for a channel that only needs the latest value, for example
+// one that shows the current headline. update() just swaps the value into
+// a single slot, so the agency never runs the channel's code; read()
+// takes whatever is in the slot and passes it on. However many updates
+// come in between two reads, the channel only sees the last one, so its
+// work grows with the number of reads rather than with the number of
+// updates.
+final class ConflatingChannel<T> implements Channel<T> {
+  private final Channel<T> channel;
+  private final AtomicReference<T> latest = new AtomicReference<>();
+
+  ConflatingChannel(Channel<T> channel) {
+    this.channel = channel;
+  }
+
+  @Override
+  public void update(T value) {
+    latest.set(value);
+  }
+
+  // Updates the channel with the latest value, if there has been a new
+  // one since the last read. Returns whether there was.
+  public boolean read() {
+    T value = latest.getAndSet(null);
+    if (value == null) {
+      return false;
+    }
+    channel.update(value);
+    return true;
+  }
 }
 
 // To be able to do that, the observable object needs 
 // to keep references to the observers, and in our case, 
 // it's the channels variable.
-class NewsChannel implements Channel {
+class NewsChannel implements Channel<String> {
   private String news;
 
   @Override
-  public void update(Object news) {
-    this.setNews((String) news);
+  public void update(String news) {
+    this.setNews(news);
   } 
 
   public String getNews() {
@@ -95,5 +718,240 @@ class Main {
     observable.addObserver(observer);
     observable.setNews("news");
     assertEquals(observer.getNews(), "news");
+
+    floodOfNews();
+    System.out.println();
+    conflation();
+    System.out.println();
+    fanOutLatency();
+    System.out.println();
+    unsubscribeFromAnotherThread();
+    System.out.println();
+    topics();
+  }
+
+  // Channels that, from within update(), have another thread remove them
+  // and wait for it. That thread needs the lock of the channel's shard, so
+  // this only works because shards aren't locked while they deliver.
+  static void unsubscribeFromAnotherThread() {
+    ExecutorService helper = Executors.newSingleThreadExecutor();
+    NewsAgency agency = new NewsAgency(helper);
+    int channels = FanOut.PARALLEL_THRESHOLD * 2;
+    AtomicInteger updates = new AtomicInteger();
+    for (int i = 0; i < channels; i++) {
+      agency.addObserver(new Channel<String>() {
+        @Override
+        public void update(String news) {
+          updates.incrementAndGet();
+          CompletableFuture.runAsync(() -> agency.removeObserver(this), helper).join();
+        }
+      });
+    }
+    agency.setNews("first");
+    agency.setNews("second");
+    assertEquals(channels, updates.get());
+    helper.shutdown();
+    System.out.println(channels + " channels unsubscribed from another thread while being updated");
+  }
+
+  static void topics() {
+    NewsAgency agency = new NewsAgency();
+    NewsChannel ukFootball = new NewsChannel();
+    NewsChannel allSports = new NewsChannel();
+    NewsChannel anyUkSport = new NewsChannel();
+    agency.addObserver("sports.football.uk", ukFootball);
+    agency.addObserver("sports.#", allSports);
+    agency.addObserver("sports.*.uk", anyUkSport);
+    agency.setNews("sports.tennis.uk", "Wimbledon starts");
+    agency.setNews("sports.football.uk", "Cup final tonight");
+    agency.setNews("weather.uk", "Rain");
+    assertEquals(ukFootball.getNews(), "Cup final tonight");
+    assertEquals(allSports.getNews(), "Cup final tonight");
+    assertEquals(anyUkSport.getNews(), "Cup final tonight");
+    agency.removeObserver("sports.#", allSports);
+    agency.setNews("sports.tennis.fr", "Roland-Garros starts");
+    assertEquals(allSports.getNews(), "Cup final tonight");
+
+    // 10,000 channels, one per sport and country, each wanting only its
+    // own topic.
+    int sports = 100;
+    int countries = 100;
+    int[] deliveries = new int[1];
+    NewsAgency narrow = new NewsAgency();
+    for (int sport = 0; sport < sports; sport++) {
+      for (int country = 0; country < countries; country++) {
+        narrow.addObserver("sports.s" + sport + ".c" + country, news -> deliveries[0]++);
+      }
+    }
+    String[] published = new String[sports * countries];
+    for (int i = 0; i < published.length; i++) {
+      published[i] = "sports.s" + i / countries + ".c" + i % countries;
+    }
+    int count = 1_000_000;
+    long began = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      narrow.setNews(published[i % published.length], "score");
+    }
+    System.out.println("10000 topic channels: " + (System.nanoTime() - began) / count + " ns per news, "
+      + deliveries[0] + " deliveries for " + count + " news");
+  }
+
+  // How long setNews() takes to update every channel, by number of
+  // channels and number of pool threads.
+  static void fanOutLatency() {
+    int cores = Runtime.getRuntime().availableProcessors();
+    System.out.println("fan-out latency on " + cores + " core(s):");
+    int publishes = 300;
+    for (int parallelism : new int[] {1, 2, 4, 8}) {
+      ForkJoinPool pool = new ForkJoinPool(parallelism);
+      for (int channels : new int[] {1_000, 10_000, 50_000, 100_000}) {
+        NewsAgency agency = new NewsAgency(pool);
+        for (int i = 0; i < channels; i++) {
+          agency.addObserver(new NewsChannel());
+        }
+        long[] nanos = new long[publishes];
+        for (int i = -publishes / 2; i < publishes; i++) {
+          long began = System.nanoTime();
+          agency.setNews("news " + i);
+          if (i >= 0) {
+            nanos[i] = System.nanoTime() - began;
+          }
+        }
+        Arrays.sort(nanos);
+        System.out.println(parallelism + " thread(s), " + channels + " channels: p50 "
+          + nanos[publishes / 2] / 1_000 + " us, p99 " + nanos[publishes * 99 / 100] / 1_000 + " us");
+      }
+      pool.shutdown();
+    }
+  }
+
+  // 1000 channels that each render the headline, on an agency that gets
+  // 100,000 news but whose channels are only read 100 times: once with
+  // every update delivered, once conflated.
+  static void conflation() {
+    int channels = 1000;
+    int updates = 100_000;
+    int readEvery = 1000;
+    int[] renders = new int[1];
+    Channel<String> headline = news -> {
+      renders[0]++;
+      String rendered = "BREAKING: " + news.toUpperCase();
+      if (rendered.isEmpty()) {
+        System.out.println(rendered);
+      }
+    };
+
+    NewsAgency direct = new NewsAgency();
+    for (int i = 0; i < channels; i++) {
+      direct.addObserver(headline);
+    }
+    long began = System.nanoTime();
+    for (int i = 1; i <= updates; i++) {
+      direct.setNews("news " + i);
+    }
+    System.out.println("every update: " + renders[0] + " renders in " + (System.nanoTime() - began) / 1_000_000 + " ms");
+
+    renders[0] = 0;
+    NewsAgency conflated = new NewsAgency();
+    List<ConflatingChannel<String>> slots = new ArrayList<>();
+    for (int i = 0; i < channels; i++) {
+      slots.add(conflated.addConflatingObserver(headline));
+    }
+    began = System.nanoTime();
+    for (int i = 1; i <= updates; i++) {
+      conflated.setNews("news " + i);
+      if (i % readEvery == 0) {
+        for (ConflatingChannel<String> slot : slots) {
+          slot.read();
+        }
+      }
+    }
+    System.out.println("conflated: " + renders[0] + " renders in " + (System.nanoTime() - began) / 1_000_000 + " ms");
+  }
+
+  // A fast and a slow Flow subscriber on an agency that gets 100,000 news
+  // as fast as it can.
+  static void floodOfNews() {
+    NewsAgency agency = new NewsAgency();
+    NewsReader fast = new NewsReader(Long.MAX_VALUE, 0);
+    NewsReader slow = new NewsReader(1, 1);
+    NewsSubscription fastSubscription = agency.publisher().subscribe(fast, 1024, DropPolicy.DROP_NEWEST);
+    NewsSubscription slowSubscription = agency.publisher().subscribe(slow, 16, DropPolicy.DROP_OLDEST);
+
+    int count = 100_000;
+    long began = System.nanoTime();
+    for (int i = 1; i <= count; i++) {
+      agency.setNews("news " + i);
+    }
+    long publishMillis = (System.nanoTime() - began) / 1_000_000;
+    agency.publisher().close();
+    fast.await();
+    slow.await();
+
+    System.out.println(count + " news published in " + publishMillis + " ms");
+    System.out.println("fast subscriber got " + fast.received + ", " + fastSubscription.dropped()
+      + " dropped, the last one being \"" + fast.last + "\"");
+    System.out.println("slow subscriber got " + slow.received + ", " + slowSubscription.dropped()
+      + " dropped, the last one being \"" + slow.last + "\"");
+  }
+}
+
+// A Flow subscriber that asks for batch news at a time and takes
+// readMillis to read each.
+class NewsReader implements Flow.Subscriber<String> {
+  private final long batch;
+  private final long readMillis;
+  private final CountDownLatch done = new CountDownLatch(1);
+  private Flow.Subscription subscription;
+  private long requested;
+  int received;
+  String last;
+
+  NewsReader(long batch, long readMillis) {
+    this.batch = batch;
+    this.readMillis = readMillis;
+  }
+
+  @Override
+  public void onSubscribe(Flow.Subscription subscription) {
+    this.subscription = subscription;
+    requested = batch;
+    subscription.request(batch);
+  }
+
+  @Override
+  public void onNext(String news) {
+    received++;
+    last = news;
+    if (readMillis > 0) {
+      try {
+        Thread.sleep(readMillis);
+      } catch (InterruptedException ex) {
+        ex.printStackTrace();
+      }
+    }
+    if (batch != Long.MAX_VALUE && --requested == 0) {
+      requested = batch;
+      subscription.request(batch);
+    }
+  }
+
+  @Override
+  public void onError(Throwable throwable) {
+    throwable.printStackTrace();
+    done.countDown();
+  }
+
+  @Override
+  public void onComplete() {
+    done.countDown();
+  }
+
+  void await() {
+    try {
+      done.await();
+    } catch (InterruptedException ex) {
+      ex.printStackTrace();
+    }
   }
 }
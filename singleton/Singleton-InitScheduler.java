@@ -0,0 +1,218 @@
+/**
+
+Design Pattern - Singleton (eager, parallel start-up)
+
+A real application has many slow-to-build singletons. Built one after
+another on first use, their start-up times add up. Here each singleton
+registers with an InitScheduler along with the singletons it depends on,
+and the scheduler builds everything whose dependencies are ready in
+parallel. Anyone who asks for a singleton early only waits for that one
+(and whatever it depends on), not for the whole start-up.
+
+You may represent the classes and interfaces in separate Java files:
+
+startup
+|_ InitScheduler.java
+|_ Lazy.java
+|_ Startup.java
+
+Logger.java
+SlowService.java
+Main.java
+
+**/
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+// A handle on a singleton registered with an InitScheduler.
+final class Lazy<T> {
+  final String name;
+  private final Supplier<T> factory;
+  private final Lazy<?>[] dependencies;
+  private final Executor executor;
+  private final AtomicBoolean started = new AtomicBoolean();
+  private final CompletableFuture<T> instance = new CompletableFuture<>();
+
+  Lazy(String name, Supplier<T> factory, Lazy<?>[] dependencies, Executor executor) {
+    this.name = name;
+    this.factory = factory;
+    this.dependencies = dependencies;
+    this.executor = executor;
+  }
+
+  // Blocks until this singleton is built, starting it (and its
+  // dependencies) right away if the scheduler hasn't got to it yet.
+  public T get() {
+    start();
+    return instance.join();
+  }
+
+  public boolean isReady() {
+    return instance.isDone();
+  }
+
+  // Schedules the build to run once every dependency is built. Only the
+  // first call does anything.
+  void start() {
+    if (!started.compareAndSet(false, true)) {
+      return;
+    }
+    CompletableFuture<?>[] ready = new CompletableFuture<?>[dependencies.length];
+    for (int i = 0; i < dependencies.length; i++) {
+      dependencies[i].start();
+      ready[i] = dependencies[i].instance;
+    }
+    // Whatever goes wrong, Errors and a rejected build included, ends up
+    // in instance, so nobody waits for it forever.
+    CompletableFuture.allOf(ready).whenComplete((ignored, failure) -> {
+      if (failure != null) {
+        instance.completeExceptionally(failure);
+        return;
+      }
+      try {
+        executor.execute(() -> {
+          try {
+            instance.complete(factory.get());
+          } catch (Throwable ex) {
+            instance.completeExceptionally(ex);
+          }
+        });
+      } catch (Throwable ex) {
+        instance.completeExceptionally(ex);
+      }
+    });
+  }
+}
+
+// Singletons register here together with the singletons they depend on.
+// A dependency has to be registered before anything that uses it, so the
+// dependency graph can never have a cycle.
+final class InitScheduler {
+  private final Executor executor;
+  private final List<Lazy<?>> registered = new ArrayList<>();
+
+  // The executor runs the builds. Slow init usually means blocking I/O, so
+  // give it enough threads to build the widest level of the graph at
+  // once (on Java 21+, Executors.newVirtualThreadPerTaskExecutor() is a
+  // good fit). Runnable::run builds everything on the calling thread, one
+  // after another, like plain lazy singletons would.
+  InitScheduler(Executor executor) {
+    this.executor = executor;
+  }
+
+  public synchronized <T> Lazy<T> register(String name, Supplier<T> factory, Lazy<?>... dependsOn) {
+    Lazy<T> lazy = new Lazy<>(name, factory, dependsOn, executor);
+    registered.add(lazy);
+    return lazy;
+  }
+
+  // Kicks off every registered build and returns right away. Builds whose
+  // dependencies are ready run in parallel.
+  public synchronized void startAll() {
+    for (Lazy<?> lazy : registered) {
+      lazy.start();
+    }
+  }
+
+  // Waits for every registered build to finish.
+  public void awaitAll() {
+    List<Lazy<?>> snapshot;
+    synchronized (this) {
+      snapshot = new ArrayList<>(registered);
+    }
+    for (Lazy<?> lazy : snapshot) {
+      lazy.get();
+    }
+  }
+}
+
+// Emulates a singleton with slow initialization that needs some other
+// singletons to be built first.
+class SlowService {
+  final String name;
+
+  SlowService(String name, long initMillis, Lazy<?>... dependsOn) {
+    for (Lazy<?> dependency : dependsOn) {
+      // Already built by the time we run, so this never blocks.
+      dependency.get();
+    }
+    try {
+      Thread.sleep(initMillis);
+    } catch (InterruptedException ex) {
+      ex.printStackTrace();
+    }
+    this.name = name;
+  }
+}
+
+// The application-wide scheduler every singleton registers with.
+final class Startup {
+  static final ExecutorService pool = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "startup");
+    thread.setDaemon(true);
+    return thread;
+  });
+  static final InitScheduler scheduler = new InitScheduler(pool);
+
+  private Startup() {}
+}
+
+final class Logger {
+  private static final Lazy<Logger> instance = Startup.scheduler.register("logger", Logger::new);
+  public String value;
+
+  private Logger() {
+    // The following code emulates slow initialization.
+    try {
+        Thread.sleep(1000);
+    } catch (InterruptedException ex) {
+        ex.printStackTrace();
+    }
+    this.value = "Logger built on " + Thread.currentThread().getName();
+  }
+
+  public static Logger getInstance() {
+    return instance.get();
+  }
+}
+
+class Main {
+  static final int SERVICES = 20;
+  static final long INIT_MILLIS = 250;
+
+  public static void main(String[] args) {
+    // Asking for the Logger early starts only the Logger, and we only wait
+    // for the Logger.
+    long began = System.nanoTime();
+    System.out.println(Logger.getInstance().value + " after "
+      + (System.nanoTime() - began) / 1_000_000 + " ms");
+
+    System.out.println("\n" + SERVICES + " services, " + INIT_MILLIS + " ms each:");
+    System.out.println("one by one: " + startUp(new InitScheduler(Runnable::run)) + " ms");
+    System.out.println("in parallel: " + startUp(new InitScheduler(Startup.pool)) + " ms");
+  }
+
+  // Registers SERVICES slow singletons in 4 layers, where every service
+  // depends on one service of the layer before it, and times how long it
+  // takes until all of them are ready.
+  static long startUp(InitScheduler scheduler) {
+    List<Lazy<SlowService>> services = new ArrayList<>();
+    int layer = SERVICES / 4;
+    for (int i = 0; i < SERVICES; i++) {
+      String name = "service-" + i;
+      Lazy<?>[] dependsOn = i < layer ? new Lazy<?>[0] : new Lazy<?>[] { services.get(i - layer) };
+      services.add(scheduler.register(name, () -> new SlowService(name, INIT_MILLIS, dependsOn), dependsOn));
+    }
+    long began = System.nanoTime();
+    scheduler.startAll();
+    scheduler.awaitAll();
+    return (System.nanoTime() - began) / 1_000_000;
+  }
+}
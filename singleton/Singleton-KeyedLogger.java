@@ -0,0 +1,231 @@
+/**
+
+Design Pattern - Singleton (keyed variant, a.k.a. Multiton)
+
+Instead of one instance per class, there is exactly one instance per key.
+Each one is still lazily built on first use, and building it is still slow.
+
+You may represent the classes and interfaces in separate Java files:
+
+registry
+|_ KeyedRegistry.java
+
+Logger.java
+Main.java
+
+**/
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// Holds one lazily built instance per key.
+//
+// The map itself only stores cheap entries; the expensive build runs in a
+// FutureTask outside of the map's locks. computeIfAbsent() makes sure all
+// callers asking for the same key get the same entry, and the FutureTask
+// makes sure only the first of them runs the build while the rest wait
+// for its result (single flight). Callers asking for other keys are never
+// held up.
+//
+// Entries can optionally be evicted when the registry grows past maxSize
+// (least recently used first) or when they haven't been used for maxIdle.
+// Only built instances are evicted: an entry whose build is still running
+// has callers waiting for it, and evicting it would let a second instance
+// be built for the same key.
+final class KeyedRegistry<K, V> {
+  private final Map<K, Entry<V>> entries = new ConcurrentHashMap<>();
+  private final Function<K, V> factory;
+  private final int maxSize;
+  private final long maxIdleNanos;
+  private final Consumer<V> onEvict;
+  // When cleanUp() next looks for idle entries.
+  private volatile long nextIdleScan;
+
+  private static final class Entry<V> {
+    final FutureTask<V> instance;
+    volatile long lastAccess = System.nanoTime();
+
+    Entry(FutureTask<V> instance) {
+      this.instance = instance;
+    }
+  }
+
+  // A registry that never evicts.
+  KeyedRegistry(Function<K, V> factory) {
+    this(factory, Integer.MAX_VALUE, null, instance -> {});
+  }
+
+  // maxIdle may be null for no idle eviction; onEvict is handed every
+  // instance that gets evicted, e.g. to close it.
+  KeyedRegistry(Function<K, V> factory, int maxSize, Duration maxIdle, Consumer<V> onEvict) {
+    this.factory = factory;
+    this.maxSize = maxSize;
+    this.maxIdleNanos = maxIdle == null ? Long.MAX_VALUE : maxIdle.toNanos();
+    this.onEvict = onEvict;
+    this.nextIdleScan = System.nanoTime() + maxIdleNanos / 4;
+  }
+
+  public V get(K key) {
+    Entry<V> entry = entries.get(key);
+    if (entry == null) {
+      // Miss: this is the only place the registry grows, so it is also
+      // where we make room.
+      entry = entries.computeIfAbsent(key, k -> new Entry<>(new FutureTask<>(() -> factory.apply(k))));
+      cleanUp();
+    }
+    entry.lastAccess = System.nanoTime();
+    // run() is a no-op for everyone but the first caller.
+    entry.instance.run();
+    try {
+      return entry.instance.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for " + key, ex);
+    } catch (ExecutionException ex) {
+      // Forget the failed build so the next caller can try again.
+      entries.remove(key, entry);
+      if (ex.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) ex.getCause();
+      }
+      throw new IllegalStateException("Cannot build instance for " + key, ex.getCause());
+    }
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  // Evicts idle entries, then the least recently used ones until the
+  // registry is back within maxSize. Called on every miss; call it
+  // yourself (e.g. from a scheduled task) to evict idle entries sooner.
+  //
+  // Both are amortised so that a miss stays cheap. Idle entries are only
+  // looked for every maxIdle / 4, so they go within 1.25 * maxIdle. Past
+  // maxSize, the entries are sorted by last use once and evicted down to
+  // 7/8 of maxSize, which leaves room for the next maxSize / 8 misses.
+  public void cleanUp() {
+    long now = System.nanoTime();
+    if (maxIdleNanos != Long.MAX_VALUE && now - nextIdleScan >= 0) {
+      nextIdleScan = now + maxIdleNanos / 4;
+      for (Map.Entry<K, Entry<V>> e : entries.entrySet()) {
+        if (now - e.getValue().lastAccess > maxIdleNanos) {
+          evict(e.getKey(), e.getValue());
+        }
+      }
+    }
+    if (entries.size() <= maxSize) {
+      return;
+    }
+    List<Map.Entry<K, Entry<V>>> built = new ArrayList<>();
+    for (Map.Entry<K, Entry<V>> e : entries.entrySet()) {
+      if (e.getValue().instance.isDone()) {
+        built.add(e);
+      }
+    }
+    built.sort(Comparator.comparingLong(e -> e.getValue().lastAccess));
+    int target = maxSize - maxSize / 8;
+    for (int i = 0; i < built.size() && entries.size() > target; i++) {
+      evict(built.get(i).getKey(), built.get(i).getValue());
+    }
+  }
+
+  private void evict(K key, Entry<V> entry) {
+    // Builds in flight are left alone (see above). remove(key, value) only
+    // succeeds for the exact entry we looked at, so a fresh instance built
+    // in the meantime is left alone too.
+    if (entry.instance.isDone() && entries.remove(key, entry)) {
+      try {
+        onEvict.accept(entry.instance.get());
+      } catch (InterruptedException | ExecutionException ex) {
+        // nothing was built, nothing to clean up
+      }
+    }
+  }
+}
+
+final class Logger {
+  private static final KeyedRegistry<String, Logger> instances =
+    new KeyedRegistry<>(Logger::new, 100, Duration.ofMinutes(10), Logger::close);
+  // Counts how many times the constructor really ran.
+  static final AtomicInteger constructions = new AtomicInteger();
+  public String value;
+
+  private Logger(String value) {
+    constructions.incrementAndGet();
+    // The following code emulates slow initialization.
+    try {
+        Thread.sleep(1000);
+    } catch (InterruptedException ex) {
+        ex.printStackTrace();
+    }
+    this.value = value;
+  }
+
+  // Unlike the plain singleton, the value is the key: each distinct value
+  // gets its own Logger, built exactly once.
+  public static Logger getInstance(String value) {
+    return instances.get(value);
+  }
+
+  void close() {
+    System.out.println("Evicted logger: " + value);
+  }
+}
+
+class Main {
+  public static void main(String[] args) throws InterruptedException {
+    // 300 threads ask for 3 different keys at the same time. Every key is
+    // built once, and all callers for that key wait for that one build.
+    int threads = 300;
+    String[] keys = {"orders", "payments", "shipping"};
+    CountDownLatch start = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(threads);
+    Logger[] seen = new Logger[threads];
+    long began = System.nanoTime();
+    for (int i = 0; i < threads; i++) {
+      int id = i;
+      new Thread(() -> {
+        try {
+          start.await();
+          seen[id] = Logger.getInstance(keys[id % keys.length]);
+        } catch (InterruptedException ex) {
+          ex.printStackTrace();
+        } finally {
+          done.countDown();
+        }
+      }).start();
+    }
+    start.countDown();
+    done.await();
+
+    boolean same = true;
+    for (int i = 0; i < threads; i++) {
+      same &= seen[i] == seen[i % keys.length] && seen[i].value.equals(keys[i % keys.length]);
+    }
+    System.out.println(threads + " threads got one logger per key: " + same);
+    System.out.println("Constructor ran " + Logger.constructions.get() + " time(s) in "
+      + (System.nanoTime() - began) / 1_000_000 + " ms");
+
+    // A small registry that keeps at most 2 instances around.
+    System.out.println();
+    KeyedRegistry<String, StringBuilder> small = new KeyedRegistry<>(
+      StringBuilder::new, 2, null, sb -> System.out.println("Evicted " + sb));
+    small.get("a");
+    Thread.sleep(1);
+    small.get("b");
+    Thread.sleep(1);
+    small.get("a"); // "a" is now more recently used than "b"
+    small.get("c"); // evicts "b"
+    System.out.println("Registry size: " + small.size());
+  }
+}
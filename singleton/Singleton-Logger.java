@@ -4,16 +4,651 @@ Design Pattern - Singleton
 
 You may represent the classes and interfaces in separate Java files:
 
+logging
+|_ Level.java
+|_ MessageFormatter.java
+|_ WaitStrategy.java
+|_ OverflowPolicy.java
+|_ LoggerConfig.java
+|_ LogRecord.java
+|_ RingBuffer.java
+|_ AsyncLogEngine.java
+
+appenders
+|_ Appender.java
+|_ ChannelAppender.java
+|_ StreamAppender.java
+|_ MappedFileAppender.java
+|_ SegmentTailer.java
+
 Logger.java
 Main.java
 
 **/
 
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+// Records below the configured level are discarded before any work is done.
+enum Level {
+  DEBUG,
+  INFO,
+  WARN,
+  ERROR
+}
+
+// Fills "{}" placeholders in a message template, one argument at a time,
+// straight into the caller's StringBuilder. Primitives and CharSequences
+// are appended without creating any intermediate strings.
+final class MessageFormatter {
+  private MessageFormatter() {}
+
+  // Appends the template up to the next placeholder followed by the
+  // argument and returns where to continue, or -1 once the template ran
+  // out of placeholders (extra arguments are ignored).
+  static int arg(StringBuilder sb, String template, int from, long value) {
+    int at = next(sb, template, from);
+    if (at >= 0) {
+      sb.append(value);
+    }
+    return at;
+  }
+
+  static int arg(StringBuilder sb, String template, int from, Object value) {
+    int at = next(sb, template, from);
+    if (at >= 0) {
+      if (value instanceof CharSequence) {
+        sb.append((CharSequence) value);
+      } else if (value instanceof Long || value instanceof Integer
+          || value instanceof Short || value instanceof Byte) {
+        sb.append(((Number) value).longValue());
+      } else {
+        sb.append(String.valueOf(value));
+      }
+    }
+    return at;
+  }
+
+  // Appends whatever is left of the template after the last argument.
+  static void finish(StringBuilder sb, String template, int from) {
+    if (from >= 0) {
+      sb.append(template, from, template.length());
+    }
+  }
+
+  private static int next(StringBuilder sb, String template, int from) {
+    if (from < 0) {
+      return -1;
+    }
+    int placeholder = template.indexOf("{}", from);
+    if (placeholder < 0) {
+      sb.append(template, from, template.length());
+      return -1;
+    }
+    sb.append(template, from, placeholder);
+    return placeholder + 2;
+  }
+}
+
+// How a thread waits when it has nothing to do: the consumer when the
+// ring is empty, a producer when the ring is full and the policy is BLOCK.
+// SPIN burns a core for the lowest latency, PARK is the friendliest to
+// the rest of the machine, YIELD sits in between.
+enum WaitStrategy {
+  SPIN {
+    void idle() { Thread.onSpinWait(); }
+  },
+  YIELD {
+    void idle() { Thread.yield(); }
+  },
+  PARK {
+    void idle() { LockSupport.parkNanos(50_000); }
+  };
+
+  abstract void idle();
+}
+
+// What a producer does when the consumer can't keep up.
+enum OverflowPolicy {
+  DROP,
+  BLOCK
+}
+
+// Settings for the engine the Logger singleton builds on first use.
+// Change Logger.config before the first getInstance() call.
+class LoggerConfig {
+  public Path file = Paths.get("logger.log");
+  // Where the consumer writes its batches; null means a ChannelAppender
+  // on the file above.
+  public Appender appender;
+  public int capacity = 8192; // rounded up to a power of two
+  public int batchSize = 256;
+  public Level level = Level.INFO;
+  public WaitStrategy waitStrategy = WaitStrategy.PARK;
+  public OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+}
+
+// A preallocated slot in the ring. Producers format the message straight
+// into the slot's own StringBuilder, which is reused once the consumer has
+// written it out, so logging allocates nothing at steady state.
+final class LogRecord {
+  long sequence;
+  long timestamp;
+  Level level;
+  String thread;
+  final StringBuilder text = new StringBuilder(128);
+}
+
+// Multi-producer, single-consumer ring buffer. Producers claim a sequence
+// with a CAS, fill the slot and then publish it; the consumer reads slots
+// in sequence order as soon as they are published. No locks anywhere.
+// Closing sets the top bit of the claim counter, so once close() returns
+// no new sequence can be claimed and the counter (minus that bit) is the
+// exact end of what the consumer still has to read.
+final class RingBuffer {
+  static final long FULL = -1;
+  static final long CLOSED = -2;
+  private static final long CLOSED_BIT = Long.MIN_VALUE;
+  private final LogRecord[] slots;
+  private final AtomicLongArray published;
+  private final int mask;
+  private final AtomicLong next = new AtomicLong();     // next sequence to claim
+  private final AtomicLong consumed = new AtomicLong(); // next sequence to read
+
+  RingBuffer(int capacity) {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    this.slots = new LogRecord[size];
+    this.published = new AtomicLongArray(size);
+    this.mask = size - 1;
+    for (int i = 0; i < size; i++) {
+      slots[i] = new LogRecord();
+      published.set(i, -1);
+    }
+  }
+
+  // Returns the claimed sequence, FULL if the ring is full or CLOSED if
+  // close() was called.
+  long tryClaim() {
+    long seq;
+    do {
+      seq = next.get();
+      if (seq < 0) {
+        return CLOSED;
+      }
+      if (seq - consumed.get() >= slots.length) {
+        return FULL;
+      }
+    } while (!next.compareAndSet(seq, seq + 1));
+    return seq;
+  }
+
+  // Stops any further claims. Safe to call more than once.
+  void close() {
+    long seq;
+    while ((seq = next.get()) >= 0 && !next.compareAndSet(seq, seq | CLOSED_BIT)) {
+      // lost a race with a producer's claim, try again
+    }
+  }
+
+  // True once the ring is closed and every sequence claimed before that
+  // has been read, which also means it was published.
+  boolean isDrained() {
+    long seq = next.get();
+    return seq < 0 && consumed.get() == (seq & ~CLOSED_BIT);
+  }
+
+  LogRecord slot(long seq) {
+    return slots[(int) seq & mask];
+  }
+
+  void publish(long seq) {
+    published.lazySet((int) seq & mask, seq);
+  }
+
+  // Sequence of the first record the consumer hasn't read yet.
+  long readPosition() {
+    return consumed.get();
+  }
+
+  boolean isPublished(long seq) {
+    return published.get((int) seq & mask) == seq;
+  }
+
+  // Hands the slots up to (but excluding) seq back to the producers.
+  void release(long seq) {
+    consumed.lazySet(seq);
+  }
+}
+
+// Destination for the encoded batches. Only the consumer thread calls it.
+interface Appender {
+  // Writes all remaining bytes of the batch.
+  void write(ByteBuffer batch) throws IOException;
+
+  // Forces everything written so far to disk and releases the file.
+  void close() throws IOException;
+}
+
+// Plain FileChannel appender: one write() system call per batch.
+final class ChannelAppender implements Appender {
+  private final FileChannel channel;
+
+  ChannelAppender(Path file) throws IOException {
+    this.channel = FileChannel.open(file,
+      StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+  }
+
+  @Override
+  public void write(ByteBuffer batch) throws IOException {
+    while (batch.hasRemaining()) {
+      channel.write(batch);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.force(false);
+    channel.close();
+  }
+}
+
+// Buffered-stream appender, kept around as a baseline for comparison.
+final class StreamAppender implements Appender {
+  private final OutputStream stream;
+  private final byte[] copy = new byte[64 * 1024];
+
+  StreamAppender(Path file) throws IOException {
+    this.stream = new BufferedOutputStream(new FileOutputStream(file.toFile(), true), 64 * 1024);
+  }
+
+  @Override
+  public void write(ByteBuffer batch) throws IOException {
+    while (batch.hasRemaining()) {
+      int n = Math.min(copy.length, batch.remaining());
+      batch.get(copy, 0, n);
+      stream.write(copy, 0, n);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    stream.close();
+  }
+}
+
+// Appends into pre-sized, memory-mapped segment files named
+// segment-00000.log, segment-00001.log, ... in the given directory.
+// Writing is a memory copy into the page cache; the OS writes the pages
+// back on its own and we only force() them every forceIntervalMillis,
+// not on every batch. When a segment is full the rest of the batch goes
+// into a fresh one. The first 8 bytes of a segment hold the offset where
+// the data written so far ends, updated after every batch, which is how
+// SegmentTailer knows how far it may read. close() truncates the last
+// segment to that offset.
+final class MappedFileAppender implements Appender {
+  static final int HEADER = 8;
+  // Release/acquire access to the header, so a reader that sees the new
+  // end offset also sees the bytes written before it.
+  static final VarHandle END =
+    MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+  private final Path directory;
+  private final int segmentSize;
+  private final long forceIntervalMillis;
+  private int segmentIndex;
+  private MappedByteBuffer segment;
+  private long lastForce = System.currentTimeMillis();
+
+  MappedFileAppender(Path directory, int segmentSize, long forceIntervalMillis) throws IOException {
+    this.directory = Files.createDirectories(directory);
+    this.segmentSize = segmentSize;
+    this.forceIntervalMillis = forceIntervalMillis;
+    // Never write into segments left over from an earlier run.
+    this.segmentIndex = lastSegmentIndex(directory) + 1;
+    this.segment = map(segmentIndex);
+  }
+
+  static Path segmentPath(Path directory, int index) {
+    return directory.resolve(String.format("segment-%05d.log", index));
+  }
+
+  // Index of the newest segment in the directory, or -1 if there is none.
+  static int lastSegmentIndex(Path directory) {
+    int index = -1;
+    while (Files.exists(segmentPath(directory, index + 1))) {
+      index++;
+    }
+    return index;
+  }
+
+  @Override
+  public void write(ByteBuffer batch) throws IOException {
+    while (batch.hasRemaining()) {
+      if (!segment.hasRemaining()) {
+        roll();
+      }
+      int n = Math.min(segment.remaining(), batch.remaining());
+      int limit = batch.limit();
+      batch.limit(batch.position() + n);
+      segment.put(batch);
+      batch.limit(limit);
+      END.setRelease(segment, 0, (long) segment.position());
+    }
+    long now = System.currentTimeMillis();
+    if (now - lastForce >= forceIntervalMillis) {
+      segment.force();
+      lastForce = now;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    segment.force();
+    try (FileChannel channel = FileChannel.open(segmentPath(directory, segmentIndex),
+        StandardOpenOption.WRITE)) {
+      channel.truncate(segment.position());
+    }
+  }
+
+  private void roll() throws IOException {
+    segment.force();
+    segmentIndex++;
+    // The old mapping is released once the buffer is garbage collected.
+    segment = map(segmentIndex);
+  }
+
+  private MappedByteBuffer map(int index) throws IOException {
+    try (FileChannel channel = FileChannel.open(segmentPath(directory, index),
+        StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      // Mapping past the end of the file grows it to the full segment size.
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+      mapped.position(HEADER);
+      END.setRelease(mapped, 0, (long) HEADER);
+      return mapped;
+    }
+  }
+}
+
+// Follows the segments written by a MappedFileAppender, like "tail -f".
+// Each segment's header says where the data written so far ends, so any
+// byte, NUL included, may appear in a message. Once the next segment
+// exists the writer is done with the current one and we move on.
+final class SegmentTailer {
+  private final Path directory;
+  private int segmentIndex;
+  private MappedByteBuffer segment;
+
+  SegmentTailer(Path directory, int firstSegment) {
+    this.directory = directory;
+    this.segmentIndex = firstSegment;
+  }
+
+  // Copies newly written bytes into dst and returns how many there were;
+  // 0 means nothing new yet, try again later.
+  int poll(ByteBuffer dst) throws IOException {
+    int copied = 0;
+    while (dst.hasRemaining()) {
+      if (segment == null && (segment = open(segmentIndex)) == null) {
+        break;
+      }
+      int n = copy(dst);
+      if (n > 0) {
+        copied += n;
+        continue;
+      }
+      // Check for the next segment before looking at this one again, so
+      // we can't miss bytes written just before the writer rolled over.
+      boolean rolled = Files.exists(MappedFileAppender.segmentPath(directory, segmentIndex + 1));
+      if (end() > segment.position()) {
+        continue;
+      }
+      if (!rolled) {
+        break;
+      }
+      segmentIndex++;
+      segment = null;
+    }
+    return copied;
+  }
+
+  // Copies as much of the data written so far as fits into dst.
+  private int copy(ByteBuffer dst) {
+    int n = Math.min(dst.remaining(), end() - segment.position());
+    if (n <= 0) {
+      return 0;
+    }
+    int limit = segment.limit();
+    segment.limit(segment.position() + n);
+    dst.put(segment);
+    segment.limit(limit);
+    return n;
+  }
+
+  private int end() {
+    return (int) (long) MappedFileAppender.END.getAcquire(segment, 0);
+  }
+
+  private MappedByteBuffer open(int index) throws IOException {
+    Path path = MappedFileAppender.segmentPath(directory, index);
+    if (!Files.exists(path)) {
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      // A file without a header means the writer created it but hasn't
+      // mapped (and so pre-sized) it yet.
+      long size = channel.size();
+      if (size < MappedFileAppender.HEADER) {
+        return null;
+      }
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      mapped.position(MappedFileAppender.HEADER);
+      return mapped;
+    }
+  }
+}
+
+// The logging engine: producers enqueue into the ring buffer, a single
+// background thread drains it in batches and hands them to an Appender.
+final class AsyncLogEngine {
+  private final RingBuffer ring;
+  private final int batchSize;
+  private final WaitStrategy waitStrategy;
+  private final OverflowPolicy overflowPolicy;
+  private final Appender appender;
+  private final ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024);
+  private final StringBuilder line = new StringBuilder(256);
+  private final LongAdder dropped = new LongAdder();
+  private final Thread consumer;
+
+  AsyncLogEngine(LoggerConfig config) throws IOException {
+    this.ring = new RingBuffer(config.capacity);
+    this.batchSize = config.batchSize;
+    this.waitStrategy = config.waitStrategy;
+    this.overflowPolicy = config.overflowPolicy;
+    this.appender = config.appender != null ? config.appender : new ChannelAppender(config.file);
+    this.consumer = new Thread(this::drainLoop, "logger-consumer");
+    this.consumer.setDaemon(true);
+    this.consumer.start();
+  }
+
+  // Claims an empty record for the caller to fill, or returns null if it
+  // was dropped because the ring was full or the engine is closed. Every
+  // claimed record must be handed back to publish(), otherwise the
+  // consumer stalls on it.
+  LogRecord claim(Level level) {
+    long seq;
+    while ((seq = ring.tryClaim()) < 0) {
+      if (seq == RingBuffer.CLOSED || overflowPolicy == OverflowPolicy.DROP) {
+        dropped.increment();
+        return null;
+      }
+      waitStrategy.idle();
+    }
+    LogRecord record = ring.slot(seq);
+    record.sequence = seq;
+    record.timestamp = System.currentTimeMillis();
+    record.level = level;
+    record.thread = Thread.currentThread().getName();
+    record.text.setLength(0);
+    return record;
+  }
+
+  void publish(LogRecord record) {
+    ring.publish(record.sequence);
+  }
+
+  long droppedCount() {
+    return dropped.sum();
+  }
+
+  // Stops the consumer once every record claimed before the call has been
+  // published and written. Anything logged afterwards is dropped.
+  void close() throws InterruptedException {
+    ring.close();
+    consumer.join();
+  }
+
+  private void drainLoop() {
+    try {
+      while (!ring.isDrained()) {
+        if (drainBatch() == 0) {
+          waitStrategy.idle();
+        }
+      }
+    } catch (IOException | RuntimeException ex) {
+      ex.printStackTrace();
+    } finally {
+      // If the appender failed nothing will drain the ring any more; close
+      // it so producers blocked on a full ring drop instead of waiting.
+      ring.close();
+      try {
+        appender.close();
+      } catch (IOException ex) {
+        ex.printStackTrace();
+      }
+    }
+  }
+
+  private int drainBatch() throws IOException {
+    long start = ring.readPosition();
+    int n = 0;
+    while (n < batchSize && ring.isPublished(start + n)) {
+      try {
+        encode(ring.slot(start + n));
+      } catch (RuntimeException ex) {
+        // A record that can't be encoded is dropped, not the consumer;
+        // end whatever part of it was written as a line of its own.
+        ex.printStackTrace();
+        dropped.increment();
+        if (!out.hasRemaining()) {
+          flush();
+        }
+        out.put((byte) '\n');
+      }
+      n++;
+    }
+    if (n > 0) {
+      ring.release(start + n);
+      flush();
+    }
+    return n;
+  }
+
+  private void encode(LogRecord record) throws IOException {
+    line.setLength(0);
+    line.append(record.timestamp).append(' ').append(record.level)
+      .append(" [").append(record.thread).append("] ");
+    putChars(line);
+    putChars(record.text);
+    if (!out.hasRemaining()) {
+      flush();
+    }
+    putUtf8('\n');
+  }
+
+  // A surrogate pair becomes one 4-byte sequence; a lone surrogate is
+  // written as '?', the same as String.getBytes(UTF_8) does.
+  private void putChars(CharSequence chars) throws IOException {
+    int length = chars.length();
+    for (int i = 0; i < length; i++) {
+      if (out.remaining() < 4) {
+        flush();
+      }
+      char c = chars.charAt(i);
+      if (!Character.isSurrogate(c)) {
+        putUtf8(c);
+      } else if (Character.isHighSurrogate(c) && i + 1 < length
+          && Character.isLowSurrogate(chars.charAt(i + 1))) {
+        putUtf8(Character.toCodePoint(c, chars.charAt(++i)));
+      } else {
+        putUtf8('?');
+      }
+    }
+  }
+
+  private void putUtf8(int c) {
+    if (c < 0x80) {
+      out.put((byte) c);
+    } else if (c < 0x800) {
+      out.put((byte) (0xC0 | (c >> 6)));
+      out.put((byte) (0x80 | (c & 0x3F)));
+    } else if (c < 0x10000) {
+      out.put((byte) (0xE0 | (c >> 12)));
+      out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+      out.put((byte) (0x80 | (c & 0x3F)));
+    } else {
+      out.put((byte) (0xF0 | (c >> 18)));
+      out.put((byte) (0x80 | ((c >> 12) & 0x3F)));
+      out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+      out.put((byte) (0x80 | (c & 0x3F)));
+    }
+  }
+
+  private void flush() throws IOException {
+    out.flip();
+    appender.write(out);
+    out.clear();
+  }
+}
+
 final class Logger {
-  private static Logger instance;
+  // Set this before the first getInstance() call to change how the
+  // logging engine is built.
+  static LoggerConfig config = new LoggerConfig();
+  // The field must be declared volatile so that double check lock would work
+  // correctly: a thread that sees a non-null instance is guaranteed to also
+  // see the fully constructed Logger behind it.
+  private static volatile Logger instance;
+  // Counts how many times the constructor really ran (should always be 1).
+  static final AtomicInteger constructions = new AtomicInteger();
   public String value;
+  private final AsyncLogEngine engine;
+  private final int threshold;
 
   private Logger(String value) {
+    constructions.incrementAndGet();
     // The following code emulates slow initialization.
     try {
         Thread.sleep(1000);
@@ -21,18 +656,198 @@ final class Logger {
         ex.printStackTrace();
     }
     this.value = value;
+    this.threshold = config.level.ordinal();
+    try {
+      this.engine = new AsyncLogEngine(config);
+    } catch (IOException ex) {
+      throw new IllegalStateException("Cannot open log output", ex);
+    }
   }
 
   public static Logger getInstance(String value) {
-    if (instance == null) {
+    // Fast path: once the singleton is published, every call costs a single
+    // volatile read and never touches the lock.
+    Logger result = instance;
+    if (result != null) {
+      return result;
+    }
+    // Slow path: only the threads racing on the very first call get here.
+    // They queue up on the lock while one of them pays the slow init.
+    synchronized (Logger.class) {
+      if (instance == null) {
         instance = new Logger(value);
+      }
+      return instance;
+    }
+  }
+
+  public boolean isEnabled(Level level) {
+    return level.ordinal() >= threshold;
+  }
+
+  // Enqueues the message for the background writer and returns right away.
+  public void log(String message) {
+    log(Level.INFO, message);
+  }
+
+  // The overloads below take a template with "{}" placeholders instead of
+  // a concatenated string. The message is formatted into a preallocated
+  // record only if the level is enabled, and primitive arguments are never
+  // boxed, so a disabled level costs one comparison and an enabled one
+  // allocates nothing.
+  public void log(Level level, String template) {
+    LogRecord record = begin(level);
+    if (record == null) return;
+    try {
+      MessageFormatter.finish(record.text, template, 0);
+    } finally {
+      engine.publish(record);
+    }
+  }
+
+  public void log(Level level, String template, Object a) {
+    LogRecord record = begin(level);
+    if (record == null) return;
+    try {
+      StringBuilder sb = record.text;
+      MessageFormatter.finish(sb, template, MessageFormatter.arg(sb, template, 0, a));
+    } finally {
+      engine.publish(record);
+    }
+  }
+
+  public void log(Level level, String template, long a) {
+    LogRecord record = begin(level);
+    if (record == null) return;
+    try {
+      StringBuilder sb = record.text;
+      MessageFormatter.finish(sb, template, MessageFormatter.arg(sb, template, 0, a));
+    } finally {
+      engine.publish(record);
+    }
+  }
+
+  public void log(Level level, String template, Object a, Object b) {
+    LogRecord record = begin(level);
+    if (record == null) return;
+    try {
+      StringBuilder sb = record.text;
+      int at = MessageFormatter.arg(sb, template, 0, a);
+      MessageFormatter.finish(sb, template, MessageFormatter.arg(sb, template, at, b));
+    } finally {
+      engine.publish(record);
     }
-    return instance;
+  }
+
+  public void log(Level level, String template, Object a, long b) {
+    LogRecord record = begin(level);
+    if (record == null) return;
+    try {
+      StringBuilder sb = record.text;
+      int at = MessageFormatter.arg(sb, template, 0, a);
+      MessageFormatter.finish(sb, template, MessageFormatter.arg(sb, template, at, b));
+    } finally {
+      engine.publish(record);
+    }
+  }
+
+  public void log(Level level, String template, long a, Object b) {
+    LogRecord record = begin(level);
+    if (record == null) return;
+    try {
+      StringBuilder sb = record.text;
+      int at = MessageFormatter.arg(sb, template, 0, a);
+      MessageFormatter.finish(sb, template, MessageFormatter.arg(sb, template, at, b));
+    } finally {
+      engine.publish(record);
+    }
+  }
+
+  public void log(Level level, String template, long a, long b) {
+    LogRecord record = begin(level);
+    if (record == null) return;
+    try {
+      StringBuilder sb = record.text;
+      int at = MessageFormatter.arg(sb, template, 0, a);
+      MessageFormatter.finish(sb, template, MessageFormatter.arg(sb, template, at, b));
+    } finally {
+      engine.publish(record);
+    }
+  }
+
+  // Fallback for three or more arguments; the varargs array itself is the
+  // only allocation.
+  public void log(Level level, String template, Object... args) {
+    LogRecord record = begin(level);
+    if (record == null) return;
+    try {
+      StringBuilder sb = record.text;
+      int at = 0;
+      for (Object arg : args) {
+        at = MessageFormatter.arg(sb, template, at, arg);
+      }
+      MessageFormatter.finish(sb, template, at);
+    } finally {
+      engine.publish(record);
+    }
+  }
+
+  private LogRecord begin(Level level) {
+    if (level.ordinal() < threshold) {
+      return null;
+    }
+    return engine.claim(level);
+  }
+
+  public long droppedCount() {
+    return engine.droppedCount();
+  }
+
+  // Writes out everything logged so far and closes the appender. Later
+  // log calls are dropped rather than blocking on a ring nobody drains.
+  public void close() throws InterruptedException {
+    engine.close();
   }
 }
 
 class Main {
-  public static void main(String[] args) {
+  public static void main(String[] args) throws InterruptedException, IOException {
+    // Log into 64 MB memory-mapped segments in a scratch directory,
+    // forcing them to disk once a second.
+    Path logs = Files.createTempDirectory("logs");
+    Logger.config.appender = new MappedFileAppender(logs, 64 * 1024 * 1024, 1000);
+    int firstSegment = MappedFileAppender.lastSegmentIndex(logs);
+
+    // Race many threads through the very first getInstance() call. With the
+    // old unsynchronized null check several of them would each pay the slow
+    // init and walk away with their own "singleton".
+    int threads = 500;
+    CountDownLatch start = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(threads);
+    Logger[] seen = new Logger[threads];
+    for (int i = 0; i < threads; i++) {
+      int id = i;
+      new Thread(() -> {
+        try {
+          start.await();
+          seen[id] = Logger.getInstance("Logger from thread " + id);
+        } catch (InterruptedException ex) {
+          ex.printStackTrace();
+        } finally {
+          done.countDown();
+        }
+      }).start();
+    }
+    start.countDown();
+    done.await();
+
+    boolean same = true;
+    for (Logger l : seen) {
+      same &= l == seen[0];
+    }
+    System.out.println(threads + " threads saw the same logger: " + same);
+    System.out.println("Constructor ran " + Logger.constructions.get() + " time(s)" + "\n");
+
     System.out.println("If you see the same value, then logger was reused (yay!)" + "\n" +
       "If you see different values, then 2 singletons were created (booo!!)" + "\n\n" +
       "RESULT:" + "\n");
@@ -40,5 +855,188 @@ class Main {
     Logger anotherLogger = Logger.getInstance("2nd Logger object");
     System.out.println(logger.value);
     System.out.println(anotherLogger.value);
+
+    // Once the logger exists, getInstance() is a single volatile read;
+    // a synchronized getInstance() takes the class lock on every call.
+    System.out.println("\ngetInstance() once initialized:");
+    for (int callers = 1; callers <= 16; callers *= 4) {
+      long checked = getInstanceRate(callers, () -> Logger.getInstance("benchmark"));
+      long locked = getInstanceRate(callers, SynchronizedLogger::getInstance);
+      System.out.println(callers + " thread(s): double-checked " + checked + " calls/s, synchronized "
+        + locked + " calls/s");
+    }
+
+    // Producers only pay for a CAS and a few field writes; the file I/O
+    // happens on the logger's own thread. Overall throughput should stay
+    // roughly flat as we spread the same number of messages over more
+    // threads.
+    // Follow the segments from another thread while we log.
+    SegmentTailer tailer = new SegmentTailer(logs, firstSegment);
+    long[] tailedLines = new long[1];
+    AtomicBoolean stop = new AtomicBoolean();
+    Thread tail = new Thread(() -> {
+      ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+      try {
+        while (true) {
+          // Only give up after a poll that started once logging was over.
+          boolean last = stop.get();
+          chunk.clear();
+          int n = tailer.poll(chunk);
+          for (int i = 0; i < n; i++) {
+            if (chunk.get(i) == '\n') tailedLines[0]++;
+          }
+          if (n == 0) {
+            if (last) break;
+            Thread.sleep(1);
+          }
+        }
+      } catch (IOException | InterruptedException ex) {
+        ex.printStackTrace();
+      }
+    });
+    tail.start();
+
+    System.out.println("\nProducer throughput (messages logged to " + logs + "):");
+    int total = 1_000_000;
+    for (int producers = 1; producers <= 64; producers *= 4) {
+      int perThread = total / producers;
+      CountDownLatch go = new CountDownLatch(1);
+      CountDownLatch finished = new CountDownLatch(producers);
+      for (int i = 0; i < producers; i++) {
+        new Thread(() -> {
+          try {
+            go.await();
+            for (int n = 0; n < perThread; n++) {
+              logger.log("Hello from the async logger");
+            }
+          } catch (InterruptedException ex) {
+            ex.printStackTrace();
+          } finally {
+            finished.countDown();
+          }
+        }).start();
+      }
+      long began = System.nanoTime();
+      go.countDown();
+      finished.await();
+      long elapsed = System.nanoTime() - began;
+      System.out.println(producers + " thread(s): "
+        + (long) producers * perThread * 1_000_000_000L / elapsed + " msg/s");
+    }
+
+    // Measure what a log call allocates on this thread once the ring's
+    // builders have grown to size. Expect 0 B/op for both.
+    com.sun.management.ThreadMXBean threadBean =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    int calls = 1_000_000;
+    for (int i = 0; i < calls; i++) {
+      logger.log(Level.INFO, "Saved {} bytes to {}", i, "test.txt");
+    }
+    long before = threadBean.getCurrentThreadAllocatedBytes();
+    for (int i = 0; i < calls; i++) {
+      logger.log(Level.INFO, "Saved {} bytes to {}", i, "test.txt");
+    }
+    long enabled = threadBean.getCurrentThreadAllocatedBytes() - before;
+    before = threadBean.getCurrentThreadAllocatedBytes();
+    for (int i = 0; i < calls; i++) {
+      logger.log(Level.DEBUG, "Saved {} bytes to {}", i, "test.txt");
+    }
+    long disabled = threadBean.getCurrentThreadAllocatedBytes() - before;
+    System.out.println("\nAllocated per call, INFO (enabled): " + (double) enabled / calls + " B/op");
+    System.out.println("Allocated per call, DEBUG (disabled): " + (double) disabled / calls + " B/op");
+    // A NUL inside a message must not hide the rest of the segment.
+    logger.log(Level.INFO, "Message with a {} inside", "\0");
+    logger.close();
+    long droppedBefore = logger.droppedCount();
+    logger.log("Logged after close");
+    System.out.println("Log call after close() dropped: " + (logger.droppedCount() == droppedBefore + 1));
+
+    stop.set(true);
+    tail.join();
+    long logged = 4L * total + 2L * calls + 1;
+    System.out.println("\nTailer read " + tailedLines[0] + " of " + logged + " lines from " + logs);
+    deleteRecursively(logs);
+
+    // Push the same bytes through each kind of appender.
+    System.out.println("\nAppender throughput:");
+    Path bench = Files.createTempDirectory("appenders");
+    appenderThroughput("FileChannel", new ChannelAppender(bench.resolve("channel.log")));
+    appenderThroughput("BufferedOutputStream", new StreamAppender(bench.resolve("stream.log")));
+    appenderThroughput("MappedByteBuffer", new MappedFileAppender(bench.resolve("mapped"), 64 * 1024 * 1024, 1000));
+    deleteRecursively(bench);
+  }
+
+  // Removes a scratch directory made by the demo, files first.
+  static void deleteRecursively(Path directory) throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  // Baseline for the comparison above: the simplest thread-safe lazy
+  // singleton.
+  static final class SynchronizedLogger {
+    private static SynchronizedLogger instance;
+
+    static synchronized SynchronizedLogger getInstance() {
+      if (instance == null) {
+        instance = new SynchronizedLogger();
+      }
+      return instance;
+    }
+  }
+
+  // Total getInstance() calls per second over all the threads.
+  static long getInstanceRate(int threads, Supplier<Object> getInstance) throws InterruptedException {
+    int calls = 20_000_000 / threads;
+    Object expected = getInstance.get();
+    for (int warmUp = 0; warmUp < 2; warmUp++) {
+      for (int i = 0; i < calls; i++) {
+        if (getInstance.get() != expected) {
+          throw new IllegalStateException("getInstance() returned another instance");
+        }
+      }
+    }
+    CountDownLatch go = new CountDownLatch(1);
+    CountDownLatch finished = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      new Thread(() -> {
+        try {
+          go.await();
+          for (int i = 0; i < calls; i++) {
+            if (getInstance.get() != expected) {
+              throw new IllegalStateException("getInstance() returned another instance");
+            }
+          }
+        } catch (InterruptedException ex) {
+          ex.printStackTrace();
+        } finally {
+          finished.countDown();
+        }
+      }).start();
+    }
+    long began = System.nanoTime();
+    go.countDown();
+    finished.await();
+    long elapsed = System.nanoTime() - began;
+    return (long) threads * calls * 1_000_000_000L / elapsed;
+  }
+
+  static void appenderThroughput(String name, Appender appender) throws IOException {
+    ByteBuffer batch = ByteBuffer.allocateDirect(4096);
+    while (batch.hasRemaining()) {
+      batch.put((byte) (batch.position() % 64 == 63 ? '\n' : 'x'));
+    }
+    int batches = 256 * 1024 * 1024 / batch.capacity();
+    long began = System.nanoTime();
+    for (int i = 0; i < batches; i++) {
+      batch.clear();
+      appender.write(batch);
+    }
+    appender.close();
+    long elapsed = System.nanoTime() - began;
+    System.out.println(name + ": " + 256L * 1_000_000_000L / elapsed + " MB/s");
   }
 }